@@ -283,8 +283,8 @@ public class AnswerChallenge extends Activity {
 			}
 			else if (response.getFirst().matches("[0-9]+,[0-9]+,[0-9]+,.+")) {
 				Log.d(TAG, "Server response: " + response.getFirst());
+				// Reports when the game is stored
 				createGame(response.getFirst());
-				showMessage("Challenge accepted, and new game created!");
 				challenges.close();
 		    	Log.d(TAG, "starting RefreshChallengesTask");
 		    	String[] params = {String.valueOf(selfId)};
@@ -320,11 +320,18 @@ public class AnswerChallenge extends Activity {
 		String srcHandle = valueStrings[3].trim();
 		int oppId = white;
 		if (oppId == selfId) oppId = black;
-		db.open();
-		if (db.findPlayer(oppId) == -1) {
-			db.addPlayer(oppId, srcHandle);
-		}
-		db.newGame(gid, white, black);
-		db.close();
+		DatabaseWriter.submit(this, new DatabaseWriter.UpsertPlayer(oppId, srcHandle));
+		DatabaseWriter.Command<Long> newGame = new DatabaseWriter.NewGame(gid, white, black);
+		newGame.setCallback(new DatabaseWriter.Callback<Long>() {
+			public void done(Long rowId) {
+				if (rowId != null && rowId != -1) {
+					showMessage("Challenge accepted, and new game created!");
+				}
+				else {
+					showMessage("Challenge accepted, but the game could not be saved.");
+				}
+			}
+		});
+		DatabaseWriter.submit(this, newGame);
 	}
 }
@@ -0,0 +1,194 @@
+/**
+ * @file
+ * Copyright (c) 2011 Marshall Farrier
+ */
+package com.codemelon.chesswithhumans;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+import android.util.Log;
+
+/**
+ * Win/draw bitbases for king and queen vs. king (KQK),
+ * king and rook vs. king (KRK) and king and pawn vs. king (KPK).
+ * The tables are generated by BitbaseGenerator the first time the app
+ * needs them, saved, and loaded once per process (cf. load(), called
+ * through Engine); until they are loaded probe() just returns UNKNOWN.
+ *
+ * Positions are normalized so that the strong side is white and
+ * the white king is on files a-d. One bit per position is then
+ * addressed by (side to move, white king, black king, piece square),
+ * cf. index(). A set bit means that white wins.
+ */
+public class Bitbase {
+	private static final String TAG = "cwfBitbase";
+	// Table numbers
+	public static final int KQK = 0;
+	public static final int KRK = 1;
+	public static final int KPK = 2;
+	public static final int TABLES = 3;
+	// File names in the app's private files directory
+	public static final String[] FILE_NAMES = { "kqk.bb", "krk.bb", "kpk.bb" };
+	// Normalized side to move
+	public static final int WTM = 0;
+	public static final int BTM = 1;
+	// Number of positions (= bits) per table
+	public static final int POSITIONS = 2 * 32 * Position.SQUARES * Position.SQUARES;
+	// Probe results, from the point of view of the side to move
+	public static final int UNKNOWN = -1;
+	public static final int DRAW = 0;
+	public static final int WIN = 1;
+	public static final int LOSS = 2;
+
+	// Replaced as a whole when a table is loaded, so probes need no locking
+	private static volatile long[][] tables = new long[TABLES][];
+
+	/**
+	 * Index of a normalized position, i.e., white king on files a-d
+	 * @param stm WTM or BTM
+	 * @param wk
+	 * @param bk
+	 * @param piece Square of the white queen, rook or pawn
+	 * @return
+	 */
+	public static int index(int stm, int wk, int bk, int piece) {
+		int wkIndex = (wk / Position.BOARD_SIZE) * 4 + wk % Position.BOARD_SIZE;
+		return ((stm * 32 + wkIndex) * Position.SQUARES + bk) * Position.SQUARES + piece;
+	}
+
+	/**
+	 * Mirrors the position left to right if necessary so that
+	 * the white king is on files a-d
+	 * @return Index of the mirrored position
+	 */
+	public static int normalizedIndex(int stm, int wk, int bk, int piece) {
+		if (wk % Position.BOARD_SIZE >= 4) {
+			return index(stm, wk ^ 7, bk ^ 7, piece ^ 7);
+		}
+		return index(stm, wk, bk, piece);
+	}
+
+	/**
+	 * Loads the tables from the given directory. Tables that are missing
+	 * or unreadable are generated and saved there, which takes a few
+	 * seconds, so don't call from the UI thread.
+	 * @param dir
+	 */
+	public static void load(File dir) {
+		File f;
+		long[][] bits = new long[TABLES][];
+		// KPK is generated from KQK and KRK
+		for (int t = 0; t < TABLES; ++t) {
+			f = new File(dir, FILE_NAMES[t]);
+			if (f.exists()) {
+				try {
+					bits[t] = read(f);
+				}
+				catch (IOException e) {
+					Log.e(TAG, "Unable to load " + FILE_NAMES[t] + ": " + e.getMessage());
+				}
+			}
+			if (bits[t] == null) {
+				bits[t] = new BitbaseGenerator(t, bits[KQK], bits[KRK]).generate();
+				try {
+					BitbaseGenerator.write(f, bits[t]);
+				}
+				catch (IOException e) {
+					// Generated again next time
+					Log.e(TAG, "Unable to save " + FILE_NAMES[t] + ": " + e.getMessage());
+				}
+				Log.d(TAG, FILE_NAMES[t] + " generated");
+			}
+			set(t, bits[t]);
+		}
+	}
+
+	public static void set(int table, long[] bits) {
+		if (bits.length != POSITIONS / 64) {
+			throw new IllegalArgumentException("Bitbase: wrong table size");
+		}
+		synchronized (Bitbase.class) {
+			long[][] copy = tables.clone();
+			copy[table] = bits;
+			tables = copy;
+		}
+	}
+
+	private static long[] read(File f) throws IOException {
+		long[] bits = new long[POSITIONS / 64];
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+		try {
+			for (int i = 0; i < bits.length; ++i) {
+				bits[i] = in.readLong();
+			}
+		}
+		finally {
+			in.close();
+		}
+		return bits;
+	}
+
+	/**
+	 * Looks up a position given as board array (cf. Position.getPiece())
+	 * and side to move. The caller must make sure that castling is no
+	 * longer possible, since the tables don't know about castling.
+	 * @param board
+	 * @param hasMove Position.WHITE or Position.BLACK
+	 * @return WIN, LOSS or DRAW from the point of view of the side to move,
+	 * UNKNOWN if the material isn't covered or the table isn't loaded
+	 */
+	public static int probe(int[] board, int hasMove) {
+		int wk = -1, bk = -1, piece = -1, pieceType = -1, strong = -1;
+		int p;
+		for (int i = 0; i < Position.SQUARES; ++i) {
+			p = board[i];
+			if (p == Position.NONE) continue;
+			if (p == Position.KING) {
+				wk = i;
+			}
+			else if (p == Position.PIECES + Position.KING) {
+				bk = i;
+			}
+			else if (piece >= 0) {
+				return UNKNOWN;
+			}
+			else {
+				piece = i;
+				pieceType = p % Position.PIECES;
+				strong = p / Position.PIECES;
+			}
+		}
+		if (piece < 0 || wk < 0 || bk < 0) return UNKNOWN;
+		int table;
+		switch (pieceType) {
+		case Position.QUEEN:
+			table = KQK;
+			break;
+		case Position.ROOK:
+			table = KRK;
+			break;
+		case Position.PAWN:
+			table = KPK;
+			break;
+		default:
+			return UNKNOWN;
+		}
+		long[] bits = tables[table];
+		if (bits == null) return UNKNOWN;
+		int stm = hasMove == strong ? WTM : BTM;
+		if (strong == Position.BLACK) {
+			// Flip the board so that the strong side is white
+			int tmp = wk;
+			wk = bk ^ 56;
+			bk = tmp ^ 56;
+			piece ^= 56;
+		}
+		int i = normalizedIndex(stm, wk, bk, piece);
+		if ((bits[i >>> 6] & (1L << (i & 63))) == 0) return DRAW;
+		return stm == WTM ? WIN : LOSS;
+	}
+}
@@ -0,0 +1,234 @@
+/**
+ * @file
+ * Copyright (c) 2011 Marshall Farrier
+ */
+package com.codemelon.chesswithhumans;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Generator for the tables used by Bitbase, run by Bitbase.load() on
+ * the device the first time the tables are needed. It can also be run
+ * on the desktop, e.g. to check the tables:
+ * java com.codemelon.chesswithhumans.BitbaseGenerator <output directory>
+ *
+ * Generation is by retrograde iteration: black-to-move mates are marked
+ * won for white, then positions are marked won as long as some white
+ * move reaches a won position or every black move does, until nothing
+ * changes. Whatever is left unmarked is a draw (or illegal).
+ * KQK and KRK must be generated before KPK, which uses them
+ * to evaluate promotions.
+ */
+public class BitbaseGenerator {
+	private static final int[] KING_STEPS = { -9, -8, -7, -1, 1, 7, 8, 9 };
+	private static final int[] ROOK_DIRECTIONS = { -8, -1, 1, 8 };
+	private static final int[] QUEEN_DIRECTIONS = { -9, -8, -7, -1, 1, 7, 8, 9 };
+
+	private final int pieceType;
+	private final long[] queenBits;
+	private final long[] rookBits;
+	private final long[] bits = new long[Bitbase.POSITIONS / 64];
+
+	/**
+	 * @param table Bitbase.KQK, Bitbase.KRK or Bitbase.KPK
+	 * @param queenBits Generated KQK table, only needed for KPK
+	 * @param rookBits Generated KRK table, only needed for KPK
+	 */
+	public BitbaseGenerator(int table, long[] queenBits, long[] rookBits) {
+		switch (table) {
+		case Bitbase.KQK:
+			pieceType = Position.QUEEN;
+			break;
+		case Bitbase.KRK:
+			pieceType = Position.ROOK;
+			break;
+		case Bitbase.KPK:
+			if (queenBits == null || rookBits == null) {
+				throw new IllegalArgumentException("BitbaseGenerator: KPK needs KQK and KRK");
+			}
+			pieceType = Position.PAWN;
+			break;
+		default:
+			throw new IllegalArgumentException("BitbaseGenerator: unknown table " + table);
+		}
+		this.queenBits = queenBits;
+		this.rookBits = rookBits;
+	}
+
+	public static void main(String[] args) throws IOException {
+		File dir = new File(args.length > 0 ? args[0] : ".");
+		long[] kqk = new BitbaseGenerator(Bitbase.KQK, null, null).generate();
+		write(new File(dir, Bitbase.FILE_NAMES[Bitbase.KQK]), kqk);
+		long[] krk = new BitbaseGenerator(Bitbase.KRK, null, null).generate();
+		write(new File(dir, Bitbase.FILE_NAMES[Bitbase.KRK]), krk);
+		long[] kpk = new BitbaseGenerator(Bitbase.KPK, kqk, krk).generate();
+		write(new File(dir, Bitbase.FILE_NAMES[Bitbase.KPK]), kpk);
+	}
+
+	public static void write(File f, long[] bits) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f)));
+		try {
+			for (int i = 0; i < bits.length; ++i) {
+				out.writeLong(bits[i]);
+			}
+		}
+		finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * @return The table, one bit per position as addressed by Bitbase.index()
+	 */
+	public long[] generate() {
+		boolean changed = true;
+		int wk, bk, piece;
+		while (changed) {
+			changed = false;
+			for (int w = 0; w < 32; ++w) {
+				wk = (w / 4) * Position.BOARD_SIZE + w % 4;
+				for (bk = 0; bk < Position.SQUARES; ++bk) {
+					for (piece = 0; piece < Position.SQUARES; ++piece) {
+						if (!isValid(wk, bk, piece)) continue;
+						if (!isWin(Bitbase.index(Bitbase.WTM, wk, bk, piece))
+								&& !attacks(piece, bk, wk) && whiteCanWin(wk, bk, piece)) {
+							setWin(Bitbase.index(Bitbase.WTM, wk, bk, piece));
+							changed = true;
+						}
+						if (!isWin(Bitbase.index(Bitbase.BTM, wk, bk, piece))
+								&& blackLoses(wk, bk, piece)) {
+							setWin(Bitbase.index(Bitbase.BTM, wk, bk, piece));
+							changed = true;
+						}
+					}
+				}
+			}
+		}
+		return bits;
+	}
+
+	private boolean isWin(int i) {
+		return (bits[i >>> 6] & (1L << (i & 63))) != 0;
+	}
+
+	private void setWin(int i) {
+		bits[i >>> 6] |= 1L << (i & 63);
+	}
+
+	private static boolean isWin(long[] b, int i) {
+		return (b[i >>> 6] & (1L << (i & 63))) != 0;
+	}
+
+	private boolean isValid(int wk, int bk, int piece) {
+		if (wk == bk || wk == piece || bk == piece) return false;
+		if (adjacent(wk, bk)) return false;
+		if (pieceType == Position.PAWN) {
+			int row = piece / Position.BOARD_SIZE;
+			if (row == 0 || row == Position.BOARD_SIZE - 1) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * True if some white move leads to a position won for white
+	 */
+	private boolean whiteCanWin(int wk, int bk, int piece) {
+		int to, i;
+		// King moves
+		for (i = 0; i < KING_STEPS.length; ++i) {
+			to = step(wk, KING_STEPS[i]);
+			if (to < 0 || to == piece || adjacent(to, bk)) continue;
+			if (isWin(Bitbase.normalizedIndex(Bitbase.BTM, to, bk, piece))) return true;
+		}
+		if (pieceType == Position.PAWN) {
+			to = piece + Position.BOARD_SIZE;
+			if (to == wk || to == bk) return false;
+			if (to / Position.BOARD_SIZE == Position.BOARD_SIZE - 1) {
+				return isWin(queenBits, Bitbase.normalizedIndex(Bitbase.BTM, wk, bk, to))
+					|| isWin(rookBits, Bitbase.normalizedIndex(Bitbase.BTM, wk, bk, to));
+			}
+			if (isWin(Bitbase.normalizedIndex(Bitbase.BTM, wk, bk, to))) return true;
+			if (piece / Position.BOARD_SIZE == 1) {
+				to += Position.BOARD_SIZE;
+				if (to != wk && to != bk
+						&& isWin(Bitbase.normalizedIndex(Bitbase.BTM, wk, bk, to))) return true;
+			}
+			return false;
+		}
+		int[] directions = pieceType == Position.QUEEN ? QUEEN_DIRECTIONS : ROOK_DIRECTIONS;
+		for (i = 0; i < directions.length; ++i) {
+			to = step(piece, directions[i]);
+			while (to >= 0 && to != wk && to != bk) {
+				if (isWin(Bitbase.normalizedIndex(Bitbase.BTM, wk, bk, to))) return true;
+				to = step(to, directions[i]);
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * True if black is mated or every black move leads to a position
+	 * won for white
+	 */
+	private boolean blackLoses(int wk, int bk, int piece) {
+		int to;
+		boolean hasMove = false;
+		for (int i = 0; i < KING_STEPS.length; ++i) {
+			to = step(bk, KING_STEPS[i]);
+			if (to < 0 || adjacent(to, wk)) continue;
+			if (to == piece) {
+				// The piece is undefended, so black draws by taking it
+				return false;
+			}
+			if (attacks(piece, to, wk)) continue;
+			hasMove = true;
+			if (!isWin(Bitbase.normalizedIndex(Bitbase.WTM, wk, to, piece))) return false;
+		}
+		// No legal move: mate or stalemate
+		return hasMove || attacks(piece, bk, wk);
+	}
+
+	/**
+	 * True if the white piece on square piece attacks square target.
+	 * Only the white king can block, so squares behind the black king
+	 * count as attacked.
+	 */
+	private boolean attacks(int piece, int target, int wk) {
+		if (pieceType == Position.PAWN) {
+			if (target / Position.BOARD_SIZE != piece / Position.BOARD_SIZE + 1) return false;
+			int colDiff = target % Position.BOARD_SIZE - piece % Position.BOARD_SIZE;
+			return colDiff == 1 || colDiff == -1;
+		}
+		int[] directions = pieceType == Position.QUEEN ? QUEEN_DIRECTIONS : ROOK_DIRECTIONS;
+		int to;
+		for (int i = 0; i < directions.length; ++i) {
+			to = step(piece, directions[i]);
+			while (to >= 0 && to != wk) {
+				if (to == target) return true;
+				to = step(to, directions[i]);
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Square reached from square by one step in the given direction,
+	 * -1 if that leaves the board
+	 */
+	private static int step(int square, int direction) {
+		int to = square + direction;
+		if (to < 0 || to >= Position.SQUARES) return -1;
+		int colDiff = to % Position.BOARD_SIZE - square % Position.BOARD_SIZE;
+		if (colDiff > 1 || colDiff < -1) return -1;
+		return to;
+	}
+
+	private static boolean adjacent(int a, int b) {
+		return Math.abs(a / Position.BOARD_SIZE - b / Position.BOARD_SIZE) <= 1
+			&& Math.abs(a % Position.BOARD_SIZE - b % Position.BOARD_SIZE) <= 1;
+	}
+}
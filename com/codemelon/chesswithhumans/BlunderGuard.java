@@ -0,0 +1,99 @@
+/**
+ * @file
+ * Copyright (c) 2011 Marshall Farrier
+ */
+package com.codemelon.chesswithhumans;
+
+/**
+ * Quick tactical check of a move about to be confirmed: does it allow
+ * mate in one, or can the opponent win material right away?
+ *
+ * The move is made on the given position and all replies are tried
+ * (then everything is taken back), so nothing is copied. A capture wins
+ * the value of the captured piece, less the value of the capturing
+ * piece if the square is defended, which is a one-exchange approximation
+ * of static exchange evaluation. The whole check is a couple of hundred
+ * make/unmake calls and fits easily in a frame.
+ */
+public class BlunderGuard {
+	public static final int OK = 0;
+	public static final int HANGS_MATERIAL = 1;
+	public static final int ALLOWS_MATE = 2;
+	// Smaller losses (e.g. a pawn) aren't reported
+	private static final int MIN_LOSS = 150;
+	private static final int MAX_MOVES = 256;
+
+	private final int[] replies = new int[MAX_MOVES];
+	private final int[] answers = new int[MAX_MOVES];
+	private int loss;
+
+	/**
+	 * @param p Position before the move; changed during the call but restored
+	 * @param from
+	 * @param to
+	 * @param piece Piece on to after the move
+	 * @return OK, HANGS_MATERIAL or ALLOWS_MATE
+	 */
+	public int check(Position p, int from, int to, int piece) {
+		int gained = capturedValue(p, from, to);
+		int maxGain = 0;
+		int n, m, f, t, victim, gain;
+		p.move(from, to, piece);
+		try {
+			n = p.generateMoves(replies, 0, false);
+			for (int i = 0; i < n; ++i) {
+				m = replies[i];
+				f = Move.packedFrom(m);
+				t = Move.packedTo(m);
+				victim = capturedValue(p, f, t);
+				gain = victim;
+				if (victim > 0) gain -= Evaluator.pieceValue(p.getPiece(f) % Position.PIECES);
+				p.move(f, t, Move.packedPiece(m));
+				if (p.leftKingInCheck()) {
+					p.unmove();
+					continue;
+				}
+				if (p.isInCheck(p.hasMove()) && !legalMoveExists(p)) {
+					p.unmove();
+					loss = 0;
+					return ALLOWS_MATE;
+				}
+				// Undefended: the capturing piece is safe
+				if (victim > 0 && !p.isAttacked(t, p.hasMove())) gain = victim;
+				if (gain > maxGain) maxGain = gain;
+				p.unmove();
+			}
+		}
+		finally {
+			p.unmove();
+		}
+		loss = maxGain - gained;
+		return loss >= MIN_LOSS ? HANGS_MATERIAL : OK;
+	}
+
+	/**
+	 * @return Material lost according to the last call to check()
+	 */
+	public int loss() {
+		return loss;
+	}
+
+	private static int capturedValue(Position p, int from, int to) {
+		if (!p.isCapture(from, to)) return 0;
+		// e.p. if to is empty
+		int victim = p.getPiece(to);
+		return Evaluator.pieceValue(victim == Position.NONE ? Position.PAWN : victim % Position.PIECES);
+	}
+
+	private boolean legalMoveExists(Position p) {
+		int n = p.generateMoves(answers, 0, false);
+		boolean legal;
+		for (int i = 0; i < n; ++i) {
+			p.move(Move.packedFrom(answers[i]), Move.packedTo(answers[i]), Move.packedPiece(answers[i]));
+			legal = !p.leftKingInCheck();
+			p.unmove();
+			if (legal) return true;
+		}
+		return false;
+	}
+}
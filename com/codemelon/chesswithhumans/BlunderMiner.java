@@ -0,0 +1,225 @@
+/**
+ * @file
+ * Copyright (c) 2011 Marshall Farrier
+ */
+package com.codemelon.chesswithhumans;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+
+import android.content.Context;
+import android.database.sqlite.SQLiteException;
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * Background job going through all finished games not processed before
+ * and saving the positions where the user's move lost at least
+ * BLUNDER_LOSS centipawns as training puzzles.
+ *
+ * Games are handled one at a time, each in a single transaction that
+ * also marks the game as done, so the job can be stopped at any moment
+ * and simply picks up with the next unprocessed game when started again.
+ * Games not yet classified by opening are classified first (cf. EcoClassifier)
+ * and finished games are added to the OpeningExplorer.
+ * Games stored before the position index existed are indexed
+ * (cf. ChessDataBaseAdapter.findPosition()).
+ * Each game's analysis (cf. GameAnalysis) is saved as well, so games
+ * reviewed in GameOver don't need to be searched again and vice versa.
+ * Where the analysis found a mate, the puzzle is checked by the MateSolver
+ * and gets the first move of the shortest proven mate as solution.
+ */
+public class BlunderMiner implements Runnable {
+	private static final String TAG = "cwfBlunderMiner";
+	public static final int BLUNDER_LOSS = 200;
+	// Budget for proving the mate of a mate puzzle
+	private static final long MATE_NODES = 200000;
+
+	private static BlunderMiner current;
+
+	private final Context context;
+	private volatile boolean stopped;
+	private volatile GameAnalysis analysis;
+	// Reused for all games so that its table carries over
+	private MateSolver mateSolver;
+
+	private BlunderMiner(Context ctx) {
+		context = ctx.getApplicationContext();
+	}
+
+	/**
+	 * Starts mining unless already running
+	 * @param ctx
+	 */
+	public static synchronized void start(Context ctx) {
+		if (current != null) return;
+		current = new BlunderMiner(ctx);
+		Thread t = new Thread(current, "blunder-miner");
+		t.setPriority(Thread.MIN_PRIORITY);
+		t.start();
+	}
+
+	public static synchronized void stop() {
+		if (current != null) {
+			current.halt();
+			current = null;
+		}
+	}
+
+	private static synchronized void finished(BlunderMiner miner) {
+		if (current == miner) current = null;
+	}
+
+	private void halt() {
+		stopped = true;
+		GameAnalysis a = analysis;
+		if (a != null) a.stop();
+	}
+
+	public void run() {
+		Process.setThreadPriority(Process.THREAD_PRIORITY_LOWEST);
+		ChessDataBaseAdapter db = new ChessDataBaseAdapter(context);
+		try {
+			LinkedList<Integer> games;
+			int selfId;
+			db.open();
+			try {
+				EcoClassifier.getInstance(context).classifyGames(db);
+				OpeningExplorer.update(db);
+				games = db.getUnminedGames();
+				selfId = db.getSelfId();
+			} finally {
+				db.close();
+			}
+			if (!indexPositions(db)) return;
+			Log.d(TAG, games.size() + " games to process");
+			for (int gameId : games) {
+				if (stopped || Ponderer.mustBackOff(context)) break;
+				if (!mine(db, gameId, selfId)) break;
+			}
+		} catch (SQLiteException e) {
+			// Try again next time
+			Log.e(TAG, e.getMessage());
+		} finally {
+			finished(this);
+		}
+	}
+
+	/**
+	 * Fills the position index for games that aren't (fully) indexed,
+	 * each game in a transaction of its own
+	 * @return false if interrupted
+	 */
+	private boolean indexPositions(ChessDataBaseAdapter db) {
+		LinkedList<Integer> games;
+		db.open();
+		try {
+			games = db.getUnindexedGames();
+		} finally {
+			db.close();
+		}
+		if (!games.isEmpty()) Log.d(TAG, games.size() + " games to index");
+		for (int gameId : games) {
+			if (stopped || Ponderer.mustBackOff(context)) return false;
+			db.open();
+			try {
+				ArrayList<Move> moveList = db.moveList(gameId);
+				// The positions aren't known while a move is missing
+				if (moveList.size() != db.plyCount(gameId)) continue;
+				long[] hashes = new long[moveList.size()];
+				Position p = new Position();
+				for (int ply = 0; ply < hashes.length; ++ply) {
+					Move m = moveList.get(ply);
+					p.move(m.from(), m.to(), m.piece());
+					hashes[ply] = p.hash();
+				}
+				db.indexPositions(gameId, hashes, hashes.length);
+			} finally {
+				db.close();
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * @return false if interrupted
+	 */
+	private boolean mine(ChessDataBaseAdapter db, int gameId, int selfId) {
+		ArrayList<Move> moveList;
+		GameAnalysis a;
+		// Colors for which to look for mistakes
+		boolean mineWhite = true, mineBlack = true;
+		db.open();
+		try {
+			moveList = db.moveList(gameId);
+			a = db.getAnalysis(gameId, moveList.size());
+			try {
+				if (db.white(selfId, gameId)) {
+					mineBlack = false;
+				}
+				else {
+					mineWhite = false;
+				}
+			} catch (IllegalArgumentException e) {
+				Log.d(TAG, "game " + gameId + ": self not playing");
+			}
+		} finally {
+			db.close();
+		}
+		if (a == null && !moveList.isEmpty()) {
+			a = new GameAnalysis(moveList.size());
+			analysis = a;
+			// Engine's table, which also gets the bitbases loaded
+			if (stopped || !a.run(moveList, Engine.getInstance(context).transpositionTable())) return false;
+			analysis = null;
+			db.open();
+			try {
+				db.saveAnalysis(gameId, a);
+			} finally {
+				db.close();
+			}
+		}
+		LinkedList<long[]> puzzles = new LinkedList<long[]>();
+		Position p = new Position();
+		Move m;
+		int[] best;
+		for (int ply = 0; ply < moveList.size(); ++ply) {
+			boolean whiteMoved = ply % 2 == 0;
+			if ((whiteMoved ? mineWhite : mineBlack) && a.loss(ply) >= BLUNDER_LOSS) {
+				best = a.bestLine(ply);
+				if (best.length > 0 && a.lineScore(ply, 0) >= Search.MATE_BOUND) {
+					best = verifyMate(p, a.lineScore(ply, 0), best);
+				}
+				if (best.length > 0) {
+					puzzles.add(new long[] {ply, p.hash(), best[0], a.loss(ply)});
+				}
+			}
+			m = moveList.get(ply);
+			p.move(m.from(), m.to(), m.piece());
+		}
+		db.open();
+		try {
+			db.savePuzzles(gameId, puzzles);
+		} finally {
+			db.close();
+		}
+		return true;
+	}
+
+	/**
+	 * @param p Puzzle position
+	 * @param score Mate score found by the analysis
+	 * @param line Mating line found by the analysis
+	 * @return Mating line proven by the MateSolver, or line if the proof
+	 * ran out of budget
+	 */
+	private int[] verifyMate(Position p, int score, int[] line) {
+		if (mateSolver == null) mateSolver = new MateSolver(false);
+		int[] proven = mateSolver.solve(p, (Search.MATE - score + 1) / 2, MATE_NODES);
+		if (proven == null || proven.length == 0) {
+			Log.d(TAG, "mate not verified");
+			return line;
+		}
+		return proven;
+	}
+}
@@ -15,9 +15,12 @@ import android.graphics.Canvas;
 import android.graphics.Paint;
 import android.graphics.Rect;
 import android.graphics.RectF;
+import android.os.AsyncTask;
 import android.util.Log;
+import android.view.Gravity;
 import android.view.MotionEvent;
 import android.view.View;
+import android.widget.Toast;
 
 /**
  * Copyright (c) 2011 Marshall Farrier
@@ -36,6 +39,10 @@ public class BoardView extends View {
 	private static final String TAG = "ChessWithFriends";	
 	private static final int SQUARES_PER_SIDE = 8;
 	private static final int PROMOTION_CHOICES = 4;
+	// Longest mate the player is warned about missing
+	private static final int MISSED_MATE_MOVES = 2;
+	// Keeps the check well within a frame
+	private static final long MISSED_MATE_NODES = 20000;
 	private final Game game;
 	private Resources res;
 	private float boardSize;
@@ -93,6 +100,8 @@ public class BoardView extends View {
 	private int mode;
 	public static final int PLAY_GAME = 0;
 	public static final int VIEW_GAME = 1;
+	// Finished game: moves go into a variation tree, not the database
+	public static final int ANALYZE_GAME = 2;
 	
 	private boolean showConfirmAbort;
 	private boolean confirmMove;
@@ -100,6 +109,22 @@ public class BoardView extends View {
 	
 	private boolean showPromotionChoices;
 	private int promoteTo;	
+	// Used by PendingMoveTask only
+	private volatile MateSolver mateSolver;
+	private BlunderGuard blunderGuard;
+	private final Object pendingMoveLock = new Object();
+	private PendingMoveTask pendingMoveTask;
+	// While true, the opponent's move of a conditional move is on the board
+	// and the player is choosing the reply (cf. Game.addPremove())
+	private boolean premoveReply;
+	// Moves from this position in the user's games (analysis mode only,
+	// so that live games don't show the user's statistics)
+	private String explorerSummary = "";
+	// Analysis mode only: the explored lines and the node shown
+	private VariationTree tree;
+	private int node;
+	// Shown with the confirm-abort buttons, null if none
+	private String confirmWarning;
 	
 	/**
 	 * 
@@ -233,6 +258,11 @@ public class BoardView extends View {
 			return super.onTouchEvent(event);
 		}
 		if (eventY > boardSize) {
+			if (premoveReply) {
+				cancelPremove();
+				return true;
+			}
+			if (mode == ANALYZE_GAME) return analysisHandler(eventX);
 			return chooseActionHandler();
 		}
 		int x = (int)(eventX / size);
@@ -251,6 +281,15 @@ public class BoardView extends View {
 		return pos.drawStatus();
 	}
 	
+	/**
+	 * The position on the board. Callers needing to change it
+	 * must work on a copy.
+	 * @return
+	 */
+	public Position position() {
+		return pos;
+	}
+	
 	public boolean myMove() {
 		if (white) {
 			if (pos.hasMove() == Position.WHITE) return true;
@@ -337,6 +376,7 @@ public class BoardView extends View {
 		}
 		else if (action == MotionEvent.ACTION_UP && promoteTo != Position.NONE) {
 			showConfirmAbort = true;
+			checkPendingMove();
 			showPromotionChoices = false;
 			tmpRect.set(0, (int) boardSize, getWidth(), getHeight());
 			invalidate(tmpRect);
@@ -371,6 +411,25 @@ public class BoardView extends View {
 				&& pos.getPiece(from) % Position.PIECES != Position.ROOK) {
 			checkForInsufficientMaterial = true;
 		}
+		if (mode == ANALYZE_GAME) {
+			clearSelection();
+			analysisMove(Move.pack(piece, from, to));
+			return;
+		}
+		if (!myMove()) {
+			// Opponent's move of a conditional move: only shown on the board
+			pos.move(from, to, piece);
+			premoveReply = true;
+			clearSelection();
+			invalidate();
+			return;
+		}
+		if (premoveReply) {
+			clearSelection();
+			game.addPremove(pos.hash(), from, to, piece);
+			cancelPremove();
+			return;
+		}
 		// Make the move in the Position object
 		pos.move(from, to, piece);
 		// Enter move in database
@@ -405,12 +464,160 @@ public class BoardView extends View {
 		}
 		// Note the above return statements if status != UNFINISHED_GAME
 		game.sendMove(from, to, piece, UNFINISHED_GAME);
+		if (DeadPositionDetector.mayBeDead(pos)) {
+			// A proven blockade ends the game after the move has gone out
+			new DeadPositionTask(true).execute(new Position(pos));
+		}
 	}
 	
 	private void abort() {		
 		clearSelection();
 	}
 	
+	/**
+	 * Switches to analysis with the moves of the game as the main line
+	 */
+	private void startAnalysis() {
+		int plies = pos.movesMade();
+		ArrayList<Move> moveList = new ArrayList<Move>(plies);
+		for (int i = 0; i < plies; ++i) {
+			moveList.add(pos.getMove(i));
+		}
+		tree = new VariationTree(moveList);
+		node = VariationTree.ROOT;
+		while (tree.firstChild(node) != VariationTree.NONE) {
+			node = tree.firstChild(node);
+		}
+		mode = ANALYZE_GAME;
+		updateExplorerSummary();
+		invalidate();
+	}
+	
+	/**
+	 * Plays the move in the current line, or follows it if it
+	 * was already explored
+	 * @param packedMove
+	 */
+	private void analysisMove(int packedMove) {
+		int child = tree.add(node, packedMove);
+		if (child == VariationTree.NONE) {
+			Toast t = Toast.makeText(game, "Analysis board is full", Toast.LENGTH_SHORT);
+			t.setGravity(Gravity.CENTER, 0, 0);
+			t.show();
+			return;
+		}
+		pos.move(Move.packedFrom(packedMove), Move.packedTo(packedMove), Move.packedPiece(packedMove));
+		node = child;
+		updateExplorerSummary();
+		invalidate();
+	}
+	
+	/**
+	 * Below the board: left third goes back a move, middle third
+	 * switches to the next line from the previous position,
+	 * right third goes forward in the first line
+	 * @param x
+	 * @return
+	 */
+	private boolean analysisHandler(float x) {
+		int target;
+		if (x < boardSize / 3) {
+			target = tree.parent(node);
+		}
+		else if (x < 2 * boardSize / 3) {
+			target = tree.nextVariation(node);
+		}
+		else {
+			target = tree.firstChild(node);
+		}
+		if (target == VariationTree.NONE || target == node) return true;
+		if (target == tree.parent(node)) {
+			pos.unmove();
+		}
+		else if (tree.parent(target) == node) {
+			int m = tree.move(target);
+			pos.move(Move.packedFrom(m), Move.packedTo(m), Move.packedPiece(m));
+		}
+		else {
+			tree.position(target, pos);
+		}
+		node = target;
+		updateExplorerSummary();
+		invalidate();
+		return true;
+	}
+	
+	/**
+	 * Clears the explorer line and looks up the position shown
+	 */
+	private void updateExplorerSummary() {
+		explorerSummary = "";
+		new ExplorerTask().execute(pos.hash());
+	}
+	
+	/**
+	 * Reads the explorer summary of a position in the background;
+	 * dropped if another position is shown by then
+	 */
+	private class ExplorerTask extends AsyncTask<Long, Void, String> {
+		private long hash;
+		
+		@Override
+		protected String doInBackground(Long... params) {
+			hash = params[0];
+			return game.explorerSummary(hash);
+		}
+		
+		@Override
+		protected void onPostExecute(String summary) {
+			if (mode != ANALYZE_GAME || pos.hash() != hash) return;
+			explorerSummary = summary;
+			invalidate();
+		}
+	}
+	
+	/**
+	 * Takes back the opponent's move of a conditional move
+	 */
+	private void cancelPremove() {
+		if (!premoveReply) return;
+		pos.unmove();
+		premoveReply = false;
+		invalidate();
+	}
+	
+	/**
+	 * Tries to prove that the given position is a dead blockade.
+	 * The proof feeds drawStatus(). If constructed with claimDraw,
+	 * a proven blockade also ends the game in a draw, sent as a
+	 * result of its own since the move has been sent already.
+	 * If the game is no longer on screen by then, the draw can still
+	 * be called from the game menu.
+	 */
+	private class DeadPositionTask extends AsyncTask<Position, Void, Boolean> {
+		private final boolean claimDraw;
+		
+		DeadPositionTask() {
+			this(false);
+		}
+		
+		DeadPositionTask(boolean claim) {
+			claimDraw = claim;
+		}
+		
+		@Override
+		protected Boolean doInBackground(Position... params) {
+			return new DeadPositionDetector().isDead(params[0]);
+		}
+		
+		@Override
+		protected void onPostExecute(Boolean dead) {
+			if (!claimDraw || !dead || game.isFinishing()) return;
+			if (game.colorResult() != UNFINISHED_GAME) return;
+			game.handleDraw(DRAW_BY_NO_MORE_CHECKMATE);
+		}
+	}
+	
 	private void clearSelection() {
 		// Clear selected squares
 		Rect r1 = new Rect();
@@ -458,6 +665,8 @@ public class BoardView extends View {
 		
 		// Hide confirm-abort menu
 		showConfirmAbort = false;
+		confirmWarning = null;
+		cancelPendingMoveCheck();
 		tmpRect = new Rect(0, (int) boardSize, (int) boardSize, (int) getHeight());
 		invalidate(tmpRect);
 	}
@@ -690,8 +899,10 @@ public class BoardView extends View {
 	 * @param y
 	 */
 	private void select(int x, int y) {
-		// Do nothing if it isn't your move
-		if (mode == PLAY_GAME && white != pos.whiteToMove()) return;
+		// Moves on the board of a finished game are analysis
+		if (mode == PLAY_GAME && game.colorResult() >= WHITE_WINS) startAnalysis();
+		// Do nothing if it isn't your move, except for entering a conditional move
+		if (mode == PLAY_GAME && white != pos.whiteToMove() && game.colorResult() != UNFINISHED_GAME) return;
 		x = Math.min(Math.max(x, 0), 7);
 		y = Math.min(Math.max(y, 0), 7);
 		int fromSquare, toSquare, piece, myColor = pos.hasMove();
@@ -763,7 +974,10 @@ public class BoardView extends View {
 				// Pawn promotion
 				if (isPawnPromotion(fromSquare, toSquare)) showPromotionChoices = true;
 				// Call confirm / abort menu
-				else showConfirmAbort = true;
+				else {
+					showConfirmAbort = true;
+					checkPendingMove();
+				}
 				
 				r = new Rect(0, (int) boardSize, (int) boardSize, getHeight());
 				invalidate(r);
@@ -790,8 +1004,103 @@ public class BoardView extends View {
 		}
 	}
 	
+	/**
+	 * Looks for a warning about the move waiting for confirmation in the
+	 * background (cf. PendingMoveTask), replacing any check still running.
+	 * The buttons are shown at once; the warning appears when found.
+	 */
+	private void checkPendingMove() {
+		confirmWarning = null;
+		cancelPendingMoveCheck();
+		if (mode != PLAY_GAME || !myMove()) return;
+		int from = getSquare(selXFrom, selYFrom);
+		int to = getSquare(selXTo, selYTo);
+		int piece = promoteTo != Position.NONE ? promoteTo : pos.getPiece(from);
+		pendingMoveTask = new PendingMoveTask(from, to, piece);
+		pendingMoveTask.execute(new Position(pos));
+	}
+	
+	private void cancelPendingMoveCheck() {
+		if (pendingMoveTask == null) return;
+		pendingMoveTask.cancel(false);
+		if (mateSolver != null) mateSolver.stop();
+		pendingMoveTask = null;
+	}
+	
+	/**
+	 * Warning for a move waiting for confirmation:
+	 * if the player has a short forced mate (with checks only) and the
+	 * selected move doesn't keep it, or else if the move allows mate in one
+	 * or leaves material hanging (cf. BlunderGuard).
+	 * The mate search is bounded by MISSED_MATE_NODES, so the warning may
+	 * be missing in complicated positions.
+	 */
+	private class PendingMoveTask extends AsyncTask<Position, Void, String> {
+		private final int from;
+		private final int to;
+		private final int piece;
+		
+		PendingMoveTask(int f, int t, int p) {
+			from = f;
+			to = t;
+			piece = p;
+		}
+		
+		@Override
+		protected String doInBackground(Position... params) {
+			Position p = params[0];
+			// The solver and the guard are reused, one check at a time
+			synchronized (pendingMoveLock) {
+				if (isCancelled()) return null;
+				int moves = missedMate(p, Move.pack(piece, from, to));
+				if (moves > 0) {
+					Log.d(TAG, "missed mate in " + moves);
+					return moves == 1 ? "You have mate in 1!" : "You have mate in " + moves + "!";
+				}
+				if (!CHECK_FOR_BLUNDERS || isCancelled()) return null;
+				if (blunderGuard == null) blunderGuard = new BlunderGuard();
+				switch (blunderGuard.check(p, from, to, piece)) {
+				case BlunderGuard.ALLOWS_MATE:
+					return "This move allows mate in 1!";
+				case BlunderGuard.HANGS_MATERIAL:
+					return "This move loses material!";
+				}
+				return null;
+			}
+		}
+		
+		@Override
+		protected void onPostExecute(String warning) {
+			if (pendingMoveTask != this) return;
+			pendingMoveTask = null;
+			if (warning == null || !showConfirmAbort) return;
+			confirmWarning = warning;
+			tmpRect.set(0, (int) boardSize, getWidth(), getHeight());
+			invalidate(tmpRect);
+		}
+	}
+	
+	/**
+	 * Called in the background only
+	 * @param p
+	 * @param selected Packed move
+	 * @return Length of the mate given up by the selected move, 0 if none
+	 */
+	private int missedMate(Position p, int selected) {
+		if (mateSolver == null) mateSolver = new MateSolver(true);
+		int[] line = mateSolver.solve(p, MISSED_MATE_MOVES, MISSED_MATE_NODES);
+		if (line == null || selected == line[0]) return 0;
+		// Another mate may be just as good
+		if (mateSolver.forcesMate(p, selected, MISSED_MATE_MOVES, MISSED_MATE_NODES)) return 0;
+		return (line.length + 1) / 2;
+	}
+	
 	private void showConfirmAbort(Canvas canvas) {
 		// Cf. paad, p. 101
+		if (confirmWarning != null) {
+			float padding = whoseMoveForeground.getTextSize();
+			canvas.drawText(confirmWarning, padding, buttonTop - padding / 2, whoseMoveForeground);
+		}
 		// Draw buttons		
 		// Confirm button		
 		canvas.drawRect(confirmMoveButton, buttonBackground);
@@ -824,12 +1133,34 @@ public class BoardView extends View {
 		else if (colorResult == DRAW) {
 			whoseMoveStr = drawLabel;
 		}
+		if (premoveReply) {
+			whoseMoveStr = "Your reply if they play this:";
+		}
+		else if (mode == ANALYZE_GAME) {
+			whoseMoveStr = "Analysis, move " + (tree.depth(node) + 1) / 2;
+			int lines = node == VariationTree.ROOT ? 1 : tree.variations(tree.parent(node));
+			if (lines > 1) whoseMoveStr += " (line " + tree.variationIndex(node) + " of " + lines + ")";
+		}
+		else if (colorResult == UNFINISHED_GAME && !myMove() && selXFrom >= 0) {
+			whoseMoveStr = "Their move for a conditional move:";
+		}
 		float padding = whoseMoveForeground.getTextSize();
 		canvas.drawText(whoseMoveStr, padding, boardSize + 2 * padding, whoseMoveForeground);
+		if (mode == ANALYZE_GAME && explorerSummary.length() > 0) {
+			canvas.drawText(explorerSummary, padding, boardSize + 3.5f * padding, whoseMoveForeground);
+		}
 	}
 	
 	private void showPressForChoices(Canvas canvas) {
-		if (game.colorResult() < WHITE_WINS) {
+		if (premoveReply) {
+			canvas.drawText("Press here to cancel", pressForChoicesText.centerX(), 
+				pressForChoicesText.centerY(), pressForChoicesForeground);
+		}
+		else if (mode == ANALYZE_GAME) {
+			canvas.drawText("< Back      Next line      Forward >", pressForChoicesText.centerX(), 
+				pressForChoicesText.centerY(), pressForChoicesForeground);
+		}
+		else if (game.colorResult() < WHITE_WINS) {
 			canvas.drawText(pressForChoicesLabel, pressForChoicesText.centerX(), 
 				pressForChoicesText.centerY(), pressForChoicesForeground);
 		}
@@ -930,7 +1261,11 @@ public class BoardView extends View {
 		white = game.white();
 		// opponentId = oppId;
 		mode = m;
+		if (mode == PLAY_GAME && DeadPositionDetector.mayBeDead(pos)) {
+			new DeadPositionTask().execute(new Position(pos));
+		}
 		showConfirmAbort = false;
+		premoveReply = false;
 		confirmMove = false;
 		abortMove = false;
 		tmpRect = new Rect();
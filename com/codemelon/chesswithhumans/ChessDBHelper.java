@@ -7,9 +7,12 @@ package com.codemelon.chesswithhumans;
 import static com.codemelon.chesswithhumans.Constants.*;
 
 import android.content.Context;
+import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Build;
 import android.util.Log;
 
 /**
@@ -20,7 +23,31 @@ import android.util.Log;
  */
 public class ChessDBHelper extends SQLiteOpenHelper {
 	private static final String TAG = "ChessDBHelper";
-	private static final int DATABASE_VERSION = 2;
+	private static final int DATABASE_VERSION = 13;
+	
+	/*
+	 * Storage of the moves: if true, each game keeps them in MOVES_COL,
+	 * two bytes per move, so that loading a game reads one row. Otherwise
+	 * one row per move in MOVE_TABLE. Either way, onOpen() converts the
+	 * moves stored the other way, so the setting may be changed in any
+	 * release. With packed moves, a move arriving before the one it follows
+	 * waits in MOVE_TABLE until the gap is filled (cf. ChessDataBaseAdapter.move()).
+	 */
+	public static final boolean PACKED_MOVES = true;
+	
+	/*
+	 * Connection settings applied in onOpen(). With the write-ahead log
+	 * (cf. SQLiteDatabase.enableWriteAheadLogging()) a commit appends to
+	 * the log instead of writing each page twice, and readers, e.g. the
+	 * game lists, go on reading while DatabaseWriter commits a sync.
+	 */
+	// NORMAL only syncs at checkpoints in WAL mode: a power loss may cost the last commits, never integrity.
+	// Not set without WAL.
+	public static final String SYNCHRONOUS = "NORMAL";
+	// Page cache per connection, negative values are in KiB
+	public static final int CACHE_SIZE = -2048;
+	// Bytes of the file read through memory mapping; ignored by SQLite before 3.7.17
+	public static final long MMAP_SIZE = 8L * 1024 * 1024;
 	
 	private static final String CREATE_TABLE_SELF = "CREATE TABLE " + SELF_TABLE + " (" +
 		PLAYER_ID_COL + " INTEGER PRIMARY KEY, " +
@@ -38,6 +65,10 @@ public class ChessDBHelper extends SQLiteOpenHelper {
 		WHITE_COL + " INTEGER NOT NULL, " + 
 		BLACK_COL + " INTEGER NOT NULL, " + 
 		RESULT_COL + " INTEGER NOT NULL, " +
+		ECO_COL + " TEXT, " +
+		PLY_COUNT_COL + " INTEGER NOT NULL DEFAULT 0, " +
+		LAST_MOVE_COL + " INTEGER, " +
+		MOVES_COL + " BLOB, " +
 		"FOREIGN KEY(" + WHITE_COL + ") REFERENCES " + PLAYER_TABLE + "(" + PLAYER_ID_COL + "), " +
 		"FOREIGN KEY(" + BLACK_COL + ") REFERENCES " + PLAYER_TABLE + "(" + PLAYER_ID_COL + ")" +
 		");";
@@ -50,6 +81,107 @@ public class ChessDBHelper extends SQLiteOpenHelper {
 		"PRIMARY KEY(" + GAME_ID_COL + ", " + MOVE_NUM_COL + ") ON CONFLICT ABORT, " +
 		"FOREIGN KEY(" + GAME_ID_COL + ") REFERENCES " + GAME_TABLE + "(" + GAME_ID_COL + ")" +
 		");";
+	// Added in version 3
+	private static final String CREATE_TABLE_ANALYSIS = "CREATE TABLE IF NOT EXISTS " + ANALYSIS_TABLE + " (" +
+		GAME_ID_COL + " INTEGER NOT NULL, " +
+		MOVE_NUM_COL + " INTEGER NOT NULL, " +
+		SCORE_COL + " INTEGER NOT NULL, " +
+		LOSS_COL + " INTEGER NOT NULL, " +
+		LINES_COL + " TEXT NOT NULL, " +
+		"PRIMARY KEY(" + GAME_ID_COL + ", " + MOVE_NUM_COL + ") ON CONFLICT REPLACE, " +
+		"FOREIGN KEY(" + GAME_ID_COL + ") REFERENCES " + GAME_TABLE + "(" + GAME_ID_COL + ")" +
+		");";
+	// Added in version 4
+	private static final String CREATE_TABLE_PUZZLE = "CREATE TABLE IF NOT EXISTS " + PUZZLE_TABLE + " (" +
+		GAME_ID_COL + " INTEGER NOT NULL, " +
+		MOVE_NUM_COL + " INTEGER NOT NULL, " +
+		POSITION_HASH_COL + " INTEGER NOT NULL, " +
+		BEST_MOVE_COL + " INTEGER NOT NULL, " +
+		LOSS_COL + " INTEGER NOT NULL, " +
+		"PRIMARY KEY(" + GAME_ID_COL + ", " + MOVE_NUM_COL + ") ON CONFLICT REPLACE, " +
+		"FOREIGN KEY(" + GAME_ID_COL + ") REFERENCES " + GAME_TABLE + "(" + GAME_ID_COL + ")" +
+		");";
+	private static final String CREATE_INDEX_PUZZLE_LOSS = "CREATE INDEX IF NOT EXISTS " + PUZZLE_LOSS_INDEX +
+		" ON " + PUZZLE_TABLE + "(" + LOSS_COL + ");";
+	private static final String CREATE_TABLE_MINED_GAME = "CREATE TABLE IF NOT EXISTS " + MINED_GAME_TABLE + " (" +
+		GAME_ID_COL + " INTEGER PRIMARY KEY ON CONFLICT REPLACE, " +
+		"FOREIGN KEY(" + GAME_ID_COL + ") REFERENCES " + GAME_TABLE + "(" + GAME_ID_COL + ")" +
+		");";
+	// Added in version 5
+	private static final String CREATE_TABLE_PREMOVE = "CREATE TABLE IF NOT EXISTS " + PREMOVE_TABLE + " (" +
+		GAME_ID_COL + " INTEGER NOT NULL, " +
+		POSITION_HASH_COL + " INTEGER NOT NULL, " +
+		FROM_SQUARE_COL + " INTEGER NOT NULL, " +
+		TO_SQUARE_COL + " INTEGER NOT NULL, " +
+		PIECE_COL + " INTEGER NOT NULL, " +
+		"PRIMARY KEY(" + GAME_ID_COL + ", " + POSITION_HASH_COL + ") ON CONFLICT REPLACE, " +
+		"FOREIGN KEY(" + GAME_ID_COL + ") REFERENCES " + GAME_TABLE + "(" + GAME_ID_COL + ")" +
+		");";
+	// Added in version 6
+	private static final String ADD_COLUMN_ECO = "ALTER TABLE " + GAME_TABLE +
+		" ADD COLUMN " + ECO_COL + " TEXT;";
+	private static final String CREATE_INDEX_GAME_ECO = "CREATE INDEX IF NOT EXISTS " + GAME_ECO_INDEX +
+		" ON " + GAME_TABLE + "(" + ECO_COL + ");";
+	// Added in version 7
+	private static final String CREATE_TABLE_EXPLORER = "CREATE TABLE IF NOT EXISTS " + EXPLORER_TABLE + " (" +
+		POSITION_HASH_COL + " INTEGER NOT NULL, " +
+		PACKED_MOVE_COL + " INTEGER NOT NULL, " +
+		GAMES_COL + " INTEGER NOT NULL DEFAULT 0, " +
+		WHITE_WINS_COL + " INTEGER NOT NULL DEFAULT 0, " +
+		DRAWS_COL + " INTEGER NOT NULL DEFAULT 0, " +
+		BLACK_WINS_COL + " INTEGER NOT NULL DEFAULT 0, " +
+		"PRIMARY KEY(" + POSITION_HASH_COL + ", " + PACKED_MOVE_COL + ")" +
+		");";
+	private static final String CREATE_TABLE_EXPLORED_GAME = "CREATE TABLE IF NOT EXISTS " + EXPLORED_GAME_TABLE + " (" +
+		GAME_ID_COL + " INTEGER PRIMARY KEY ON CONFLICT REPLACE, " +
+		"FOREIGN KEY(" + GAME_ID_COL + ") REFERENCES " + GAME_TABLE + "(" + GAME_ID_COL + ")" +
+		");";
+	// Added in version 8
+	private static final String CREATE_TABLE_POSITION_INDEX = "CREATE TABLE IF NOT EXISTS " + POSITION_INDEX_TABLE + " (" +
+		GAME_ID_COL + " INTEGER NOT NULL, " +
+		PLY_COL + " INTEGER NOT NULL, " +
+		POSITION_HASH_COL + " INTEGER NOT NULL, " +
+		"PRIMARY KEY(" + GAME_ID_COL + ", " + PLY_COL + ") ON CONFLICT REPLACE, " +
+		"FOREIGN KEY(" + GAME_ID_COL + ") REFERENCES " + GAME_TABLE + "(" + GAME_ID_COL + ")" +
+		");";
+	private static final String CREATE_INDEX_POSITION_INDEX_HASH = "CREATE INDEX IF NOT EXISTS " +
+		POSITION_INDEX_HASH_INDEX + " ON " + POSITION_INDEX_TABLE + "(" + POSITION_HASH_COL + ");";
+	// Added in version 9
+	private static final String ADD_COLUMN_PLY_COUNT = "ALTER TABLE " + GAME_TABLE +
+		" ADD COLUMN " + PLY_COUNT_COL + " INTEGER NOT NULL DEFAULT 0;";
+	private static final String ADD_COLUMN_LAST_MOVE = "ALTER TABLE " + GAME_TABLE +
+		" ADD COLUMN " + LAST_MOVE_COL + " INTEGER;";
+	// Same packing as Move.pack()
+	private static final String PACK_MOVE = "(%1$s." + FROM_SQUARE_COL + " | (%1$s." + TO_SQUARE_COL + 
+		" << 6) | (%1$s." + PIECE_COL + " << 12))";
+	// Moves may arrive out of order; only a later move updates the game
+	private static final String CREATE_TRIGGER_MOVE_INSERT = "CREATE TRIGGER IF NOT EXISTS " + 
+		MOVE_INSERT_TRIGGER + " AFTER INSERT ON " + MOVE_TABLE + " BEGIN " +
+		"UPDATE " + GAME_TABLE + " SET " + 
+		PLY_COUNT_COL + " = NEW." + MOVE_NUM_COL + " + 1, " +
+		LAST_MOVE_COL + " = " + String.format(PACK_MOVE, "NEW") +
+		" WHERE " + GAME_ID_COL + " = NEW." + GAME_ID_COL + 
+		" AND " + PLY_COUNT_COL + " <= NEW." + MOVE_NUM_COL + "; " +
+		"END;";
+	private static final String FILL_PLY_COUNT = "UPDATE " + GAME_TABLE + " SET " +
+		PLY_COUNT_COL + " = IFNULL((SELECT MAX(m." + MOVE_NUM_COL + ") + 1 FROM " + MOVE_TABLE + " m" +
+		" WHERE m." + GAME_ID_COL + " = " + GAME_TABLE + "." + GAME_ID_COL + "), 0), " +
+		LAST_MOVE_COL + " = (SELECT " + String.format(PACK_MOVE, "m") + " FROM " + MOVE_TABLE + " m" +
+		" WHERE m." + GAME_ID_COL + " = " + GAME_TABLE + "." + GAME_ID_COL + 
+		" ORDER BY m." + MOVE_NUM_COL + " DESC LIMIT 1);";
+	// Added in version 10
+	private static final String ADD_COLUMN_MOVES = "ALTER TABLE " + GAME_TABLE + " ADD COLUMN " +
+		MOVES_COL + " BLOB;";
+	// Added in version 12: games marked UNKNOWN while there was no ECO table
+	private static final String CLEAR_UNKNOWN_ECO = "UPDATE " + GAME_TABLE + " SET " + ECO_COL + 
+		" = NULL WHERE " + ECO_COL + " = '" + EcoClassifier.UNKNOWN + "';";
+	// Results of a game that is still open
+	private static final String ACTIVE_RESULTS = "(" + 
+		UNFINISHED_GAME + ", " + 
+		DRAW_OFFERED + ", " +
+		DRAW_DECLINED_CONFIRMED + ", " +
+		DRAW_OFFER_DECLINED + ", " +
+		DRAW_OFFERED_BY_OPPONENT + ")";
 	private static final String CREATE_UNCONFIRMED_GAME_VIEW = 
 		"CREATE VIEW IF NOT EXISTS " + UNCONFIRMED_GAME_VIEW + " AS " +
 		"SELECT * FROM " + GAME_TABLE +
@@ -57,65 +189,87 @@ public class ChessDBHelper extends SQLiteOpenHelper {
 	private static final String CREATE_UNFINISHED_GAME_VIEW = 
 		"CREATE VIEW IF NOT EXISTS " + UNFINISHED_GAME_VIEW + " AS " +
 		"SELECT * FROM " + GAME_TABLE +
-		" WHERE " + RESULT_COL + " IN ( " + 
-		UNFINISHED_GAME + ", " + 
-		DRAW_OFFERED + ", " +
-		DRAW_DECLINED_CONFIRMED + ", " +
-		DRAW_OFFER_DECLINED + ", " +
-		DRAW_OFFERED_BY_OPPONENT + ");";
-	private static final String CREATE_VIEW_ACTIVE_GAME_OPP_ID_WITH_SELF = 
-		"CREATE VIEW IF NOT EXISTS " + ACTIVE_GAME_OPP_ID_WITH_SELF_VIEW + " AS " +
-		"SELECT " + WHITE_COL + " " + PLAYER_ID_COL + ", " +
-		GAME_ID_COL +
-		" FROM " + UNFINISHED_GAME_VIEW + 
-		" UNION " +
-		"SELECT " + BLACK_COL + " " + PLAYER_ID_COL + ", " +
-		GAME_ID_COL +
-		" FROM " + UNFINISHED_GAME_VIEW + ";";
-	private static final String CREATE_VIEW_ACTIVE_OPP_ID = 
-		"CREATE VIEW IF NOT EXISTS " + ACTIVE_OPPONENT_ID_VIEW + " AS " +
-		"SELECT " + PLAYER_ID_COL + 
-		" FROM " + ACTIVE_GAME_OPP_ID_WITH_SELF_VIEW + 
-		" EXCEPT " +
-		"SELECT " + PLAYER_ID_COL +
-		" FROM " + SELF_TABLE + ";";
-	private static final String CREATE_VIEW_ACTIVE_GAME_OPP_ID = 
-		"CREATE VIEW IF NOT EXISTS " + ACTIVE_GAME_OPPONENT_ID_VIEW + " AS " +
-		"SELECT a." + PLAYER_ID_COL + " " + PLAYER_ID_COL + "," +
-		" a." + GAME_ID_COL + " " + GAME_ID_COL +
-		" FROM " + ACTIVE_GAME_OPP_ID_WITH_SELF_VIEW + " a," +
-		" " + ACTIVE_OPPONENT_ID_VIEW + " b " +
-		"WHERE a." + PLAYER_ID_COL + " = b." + PLAYER_ID_COL + ";";
-	private static final String CREATE_VIEW_OPPONENTS =
-		"CREATE VIEW IF NOT EXISTS " + OPPONENT_ID_VIEW + " AS " +
-		"SELECT " + PLAYER_ID_COL + 
-		" FROM " + PLAYER_TABLE + 
-		" WHERE " + PLAYER_ID_COL + " != " + PLAYER_ANY_ID +
-		" EXCEPT " +
-		"SELECT " + PLAYER_ID_COL +
-		" FROM " + SELF_TABLE + ";";
-	private static final String CREATE_VIEW_NEW_GAME_OPP_ID = 
-		"CREATE VIEW IF NOT EXISTS " + NEW_GAME_OPPONENT_ID_VIEW + " AS " +
-		"SELECT " + PLAYER_ID_COL + 
-		" FROM " + OPPONENT_ID_VIEW + 
-		" EXCEPT " +
-		"SELECT " + PLAYER_ID_COL +
-		" FROM " + ACTIVE_GAME_OPPONENT_ID_VIEW + ";";
-	private static final String CREATE_VIEW_NEW_GAME_OPPONENT = 
-		"CREATE VIEW IF NOT EXISTS " + NEW_GAME_OPPONENT_VIEW + " AS " +
-		"SELECT p." + PLAYER_ID_COL + " " + PLAYER_ID_COL + ", " +
-		"p." + PLAYER_NAME_COL + " " + PLAYER_NAME_COL +
-		" FROM " + PLAYER_TABLE + " p, " +
-		NEW_GAME_OPPONENT_ID_VIEW + " n" +
-		" WHERE p." + PLAYER_ID_COL + " = n." + PLAYER_ID_COL + ";";
-	private static final String CREATE_VIEW_RESUME_GAME_OPPONENT = 
-		"CREATE VIEW IF NOT EXISTS " + RESUME_GAME_OPPONENT_VIEW + " AS " +
-		"SELECT p." + PLAYER_ID_COL + " " + PLAYER_ID_COL + ", " +
-		"p." + PLAYER_NAME_COL + " " + PLAYER_NAME_COL + ", " +
-		"a." + GAME_ID_COL + " " + GAME_ID_COL +
-		" FROM " + PLAYER_TABLE + " p, " +
-		ACTIVE_GAME_OPPONENT_ID_VIEW + " a" +
-		" WHERE p." + PLAYER_ID_COL + " = a." + PLAYER_ID_COL + ";";
+		" WHERE " + RESULT_COL + " IN " + ACTIVE_RESULTS + ";";
+	// Added in version 11
+	private static final String CREATE_TABLE_OPPONENT_SUMMARY = "CREATE TABLE IF NOT EXISTS " + 
+		OPPONENT_SUMMARY_TABLE + " (" +
+		PLAYER_ID_COL + " INTEGER PRIMARY KEY, " +
+		PLAYER_NAME_COL + " TEXT NOT NULL, " +
+		GAME_ID_COL + " INTEGER, " +
+		SELF_TO_MOVE_COL + " INTEGER, " +
+		LAST_ACTIVITY_COL + " INTEGER" +
+		");";
+	private static final String CREATE_INDEX_OPPONENT_SUMMARY_NAME = "CREATE INDEX IF NOT EXISTS " +
+		OPPONENT_SUMMARY_NAME_INDEX + " ON " + OPPONENT_SUMMARY_TABLE + "(" + PLAYER_NAME_COL + ");";
+	/*
+	 * Recomputes the summary rows of the players matching a condition on p,
+	 * e.g. "p.player_id = NEW.white" (%1$s), setting LAST_ACTIVITY_COL to
+	 * the given expression (%2$s), where g is the active game. Self is
+	 * never in the summary; player "any" is, as in the old resume view, and
+	 * getNewGamePlayers() leaves it out. An opponent has at most one
+	 * active game; should there be more, the latest is used.
+	 * Self is to move iff the number of moves made is even for white,
+	 * odd for black, and self is white iff the opponent is black.
+	 */
+	private static final String REFRESH_OPPONENTS = "INSERT OR REPLACE INTO " + OPPONENT_SUMMARY_TABLE + 
+		" (" + PLAYER_ID_COL + ", " + PLAYER_NAME_COL + ", " + GAME_ID_COL + ", " + SELF_TO_MOVE_COL + ", " + 
+		LAST_ACTIVITY_COL + ")" +
+		" SELECT p." + PLAYER_ID_COL + ", p." + PLAYER_NAME_COL + ", g." + GAME_ID_COL + ", " +
+		"(g." + PLY_COUNT_COL + " + (g." + BLACK_COL + " = p." + PLAYER_ID_COL + ")) %% 2, %2$s" +
+		" FROM " + PLAYER_TABLE + " p LEFT JOIN " + GAME_TABLE + " g ON g." + GAME_ID_COL + " = " +
+		"(SELECT " + GAME_ID_COL + " FROM " + GAME_TABLE + 
+		" WHERE (" + WHITE_COL + " = p." + PLAYER_ID_COL + " OR " + BLACK_COL + " = p." + PLAYER_ID_COL + ")" +
+		" AND " + RESULT_COL + " IN " + ACTIVE_RESULTS + 
+		" ORDER BY " + GAME_ID_COL + " DESC LIMIT 1)" +
+		" WHERE %1$s AND p." + PLAYER_ID_COL + " NOT IN (SELECT " + PLAYER_ID_COL + " FROM " + SELF_TABLE + ");";
+	// Activity of a game is the time of the trigger; a player change keeps it
+	private static final String NOW = "CAST(strftime('%s', 'now') AS INTEGER)";
+	private static final String KEEP_ACTIVITY = "IFNULL((SELECT " + LAST_ACTIVITY_COL + " FROM " + 
+		OPPONENT_SUMMARY_TABLE + " WHERE " + PLAYER_ID_COL + " = p." + PLAYER_ID_COL + "), g." + 
+		DATE_STARTED_COL + ")";
+	private static final String FILL_OPPONENT_SUMMARY = String.format(REFRESH_OPPONENTS, "1", 
+		"g." + DATE_STARTED_COL);
+	private static final String[] CREATE_OPPONENT_SUMMARY_TRIGGERS = {
+		"CREATE TRIGGER IF NOT EXISTS " + OPPONENT_PLAYER_INSERT_TRIGGER + 
+			" AFTER INSERT ON " + PLAYER_TABLE + " BEGIN " +
+			String.format(REFRESH_OPPONENTS, "p." + PLAYER_ID_COL + " = NEW." + PLAYER_ID_COL, KEEP_ACTIVITY) +
+			" END;",
+		"CREATE TRIGGER IF NOT EXISTS " + OPPONENT_PLAYER_UPDATE_TRIGGER + 
+			" AFTER UPDATE ON " + PLAYER_TABLE + " BEGIN " +
+			"DELETE FROM " + OPPONENT_SUMMARY_TABLE + " WHERE " + PLAYER_ID_COL + " = OLD." + PLAYER_ID_COL + 
+			" AND OLD." + PLAYER_ID_COL + " != NEW." + PLAYER_ID_COL + "; " +
+			String.format(REFRESH_OPPONENTS, "p." + PLAYER_ID_COL + " = NEW." + PLAYER_ID_COL, KEEP_ACTIVITY) +
+			" END;",
+		"CREATE TRIGGER IF NOT EXISTS " + OPPONENT_PLAYER_DELETE_TRIGGER + 
+			" AFTER DELETE ON " + PLAYER_TABLE + " BEGIN " +
+			"DELETE FROM " + OPPONENT_SUMMARY_TABLE + " WHERE " + PLAYER_ID_COL + " = OLD." + PLAYER_ID_COL + ";" +
+			" END;",
+		"CREATE TRIGGER IF NOT EXISTS " + OPPONENT_SELF_INSERT_TRIGGER + 
+			" AFTER INSERT ON " + SELF_TABLE + " BEGIN " +
+			"DELETE FROM " + OPPONENT_SUMMARY_TABLE + " WHERE " + PLAYER_ID_COL + " = NEW." + PLAYER_ID_COL + "; " +
+			// Whose move it is depends on self
+			String.format(REFRESH_OPPONENTS, "1", KEEP_ACTIVITY) +
+			" END;",
+		"CREATE TRIGGER IF NOT EXISTS " + OPPONENT_SELF_DELETE_TRIGGER + 
+			" AFTER DELETE ON " + SELF_TABLE + " BEGIN " +
+			String.format(REFRESH_OPPONENTS, "p." + PLAYER_ID_COL + " = OLD." + PLAYER_ID_COL, KEEP_ACTIVITY) +
+			" END;",
+		"CREATE TRIGGER IF NOT EXISTS " + OPPONENT_GAME_INSERT_TRIGGER + 
+			" AFTER INSERT ON " + GAME_TABLE + " BEGIN " +
+			String.format(REFRESH_OPPONENTS, "p." + PLAYER_ID_COL + " IN (NEW." + WHITE_COL + ", NEW." + 
+				BLACK_COL + ")", NOW) +
+			" END;",
+		// Moves update PLY_COUNT_COL whichever way they are stored. Updates that
+		// leave both columns as they were, e.g. converting the moves in onOpen(),
+		// aren't activity.
+		"CREATE TRIGGER IF NOT EXISTS " + OPPONENT_GAME_UPDATE_TRIGGER + 
+			" AFTER UPDATE OF " + RESULT_COL + ", " + PLY_COUNT_COL + " ON " + GAME_TABLE + 
+			" WHEN OLD." + RESULT_COL + " != NEW." + RESULT_COL + 
+			" OR OLD." + PLY_COUNT_COL + " != NEW." + PLY_COUNT_COL + " BEGIN " +
+			String.format(REFRESH_OPPONENTS, "p." + PLAYER_ID_COL + " IN (NEW." + WHITE_COL + ", NEW." + 
+				BLACK_COL + ")", NOW) +
+			" END;"
+	};
 
 	public ChessDBHelper(Context context) {
 		super(context, DATABASE_NAME, null, DATABASE_VERSION);
@@ -135,24 +289,28 @@ public class ChessDBHelper extends SQLiteOpenHelper {
 				Log.d(TAG, "player 'any' inserted");
 				// db.execSQL(CREATE_TABLE_CHALLENGE);
 				db.execSQL(CREATE_TABLE_GAME);
+				db.execSQL(CREATE_INDEX_GAME_ECO);
 				Log.d(TAG, "game table created");
 				db.execSQL(CREATE_TABLE_MOVE);
+				db.execSQL(CREATE_TRIGGER_MOVE_INSERT);
 				Log.d(TAG, "move table created");
+				db.execSQL(CREATE_TABLE_ANALYSIS);
+				Log.d(TAG, "analysis table created");
+				createPuzzleTables(db);
+				Log.d(TAG, "puzzle tables created");
+				db.execSQL(CREATE_TABLE_PREMOVE);
+				Log.d(TAG, "premove table created");
+				createExplorerTables(db);
+				Log.d(TAG, "explorer tables created");
+				db.execSQL(CREATE_TABLE_POSITION_INDEX);
+				db.execSQL(CREATE_INDEX_POSITION_INDEX_HASH);
+				Log.d(TAG, "position index created");
 				db.execSQL(CREATE_UNCONFIRMED_GAME_VIEW);
 				Log.d(TAG, "view " + UNCONFIRMED_GAME_VIEW + " created");
 				db.execSQL(CREATE_UNFINISHED_GAME_VIEW);
 				Log.d(TAG, "view " + UNFINISHED_GAME_VIEW + " created");
-				db.execSQL(CREATE_VIEW_ACTIVE_GAME_OPP_ID_WITH_SELF);
-				db.execSQL(CREATE_VIEW_ACTIVE_OPP_ID);
-				db.execSQL(CREATE_VIEW_ACTIVE_GAME_OPP_ID);
-				Log.d(TAG, "view " + ACTIVE_GAME_OPPONENT_ID_VIEW + " created");
-				db.execSQL(CREATE_VIEW_OPPONENTS);
-				db.execSQL(CREATE_VIEW_NEW_GAME_OPP_ID);
-				Log.d(TAG, "view " + NEW_GAME_OPPONENT_ID_VIEW + " created");				
-				db.execSQL(CREATE_VIEW_NEW_GAME_OPPONENT);
-				Log.d(TAG, "view " + NEW_GAME_OPPONENT_VIEW + " created");
-				db.execSQL(CREATE_VIEW_RESUME_GAME_OPPONENT);
-				Log.d(TAG, "view " + RESUME_GAME_OPPONENT_VIEW + " created");
+				createOpponentSummary(db);
+				Log.d(TAG, "opponent summary created");
 				db.setTransactionSuccessful();
 			} finally {
 				db.endTransaction();
@@ -162,9 +320,131 @@ public class ChessDBHelper extends SQLiteOpenHelper {
 		}
 	}
 
+	@Override
+	public void onOpen(SQLiteDatabase db) {
+		super.onOpen(db);
+		if (db.isReadOnly()) return;
+		// enableWriteAheadLogging() was added in Honeycomb
+		boolean wal = Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB && db.enableWriteAheadLogging();
+		if (!wal) Log.w(TAG, "write-ahead logging not available");
+		// The pragmas only reach the primary connection: the connections
+		// SQLiteDatabase opens for readers in WAL mode keep SQLite's defaults
+		if (wal) pragma(db, "synchronous = " + SYNCHRONOUS);
+		pragma(db, "cache_size = " + CACHE_SIZE);
+		pragma(db, "mmap_size = " + MMAP_SIZE);
+		Log.d(TAG, "journal mode " + pragma(db, "journal_mode") + ", mmap size " + pragma(db, "mmap_size"));
+		db.beginTransaction();
+		try {
+			if (PACKED_MOVES) packMoves(db);
+			else unpackMoves(db);
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+		}
+	}
+	
+	/**
+	 * Runs a pragma through rawQuery(), as some of them return a row,
+	 * which execSQL() rejects on some devices.
+	 * @param db
+	 * @param pragma E.g. "cache_size = 1000"
+	 * @return First value returned, null if none
+	 */
+	private static String pragma(SQLiteDatabase db, String pragma) {
+		String result = null;
+		Cursor c = db.rawQuery("PRAGMA " + pragma, null);
+		if (c.moveToFirst()) {
+			result = c.getString(0);
+		}
+		c.close();
+		return result;
+	}
+
 	@Override
 	public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-		
+		Log.d(TAG, "upgrading database from version " + oldVersion + " to " + newVersion);
+		if (oldVersion < 2) {
+			recreate(db);
+			return;
+		}
+		// From here on, upgrades keep the user's games
+		if (oldVersion < 3) {
+			db.execSQL(CREATE_TABLE_ANALYSIS);
+		}
+		if (oldVersion < 4) {
+			createPuzzleTables(db);
+		}
+		if (oldVersion < 5) {
+			db.execSQL(CREATE_TABLE_PREMOVE);
+		}
+		if (oldVersion < 6) {
+			db.execSQL(ADD_COLUMN_ECO);
+			db.execSQL(CREATE_INDEX_GAME_ECO);
+		}
+		if (oldVersion < 7) {
+			createExplorerTables(db);
+		}
+		if (oldVersion < 8) {
+			db.execSQL(CREATE_TABLE_POSITION_INDEX);
+			db.execSQL(CREATE_INDEX_POSITION_INDEX_HASH);
+			// Games already stored are indexed by BlunderMiner
+		}
+		if (oldVersion < 9) {
+			db.execSQL(ADD_COLUMN_PLY_COUNT);
+			db.execSQL(ADD_COLUMN_LAST_MOVE);
+			db.execSQL(FILL_PLY_COUNT);
+			db.execSQL(CREATE_TRIGGER_MOVE_INSERT);
+		}
+		if (oldVersion < 10) {
+			// The moves are packed, if need be, by onOpen()
+			db.execSQL(ADD_COLUMN_MOVES);
+		}
+		if (oldVersion < 11) {
+			dropOpponentViews(db);
+			createOpponentSummary(db);
+		}
+		if (oldVersion < 12) {
+			// Classified again by BlunderMiner
+			db.execSQL(CLEAR_UNKNOWN_ECO);
+		}
+		if (oldVersion < 13) {
+			// Player "any" is back in the summary
+			dropOpponentSummaryTriggers(db);
+			createOpponentSummary(db);
+		}
+	}
+	
+	private void createPuzzleTables(SQLiteDatabase db) {
+		db.execSQL(CREATE_TABLE_PUZZLE);
+		db.execSQL(CREATE_INDEX_PUZZLE_LOSS);
+		db.execSQL(CREATE_TABLE_MINED_GAME);
+	}
+	
+	/**
+	 * Creates the opponent summary with its triggers and fills it
+	 * from the tables, in case they aren't empty
+	 * @param db
+	 */
+	private void createOpponentSummary(SQLiteDatabase db) {
+		db.execSQL(CREATE_TABLE_OPPONENT_SUMMARY);
+		db.execSQL(CREATE_INDEX_OPPONENT_SUMMARY_NAME);
+		for (String trigger : CREATE_OPPONENT_SUMMARY_TRIGGERS) {
+			db.execSQL(trigger);
+		}
+		db.execSQL(FILL_OPPONENT_SUMMARY);
+	}
+	
+	private void dropOpponentSummaryTriggers(SQLiteDatabase db) {
+		db.execSQL("DROP TRIGGER IF EXISTS " + OPPONENT_PLAYER_INSERT_TRIGGER);
+		db.execSQL("DROP TRIGGER IF EXISTS " + OPPONENT_PLAYER_UPDATE_TRIGGER);
+		db.execSQL("DROP TRIGGER IF EXISTS " + OPPONENT_PLAYER_DELETE_TRIGGER);
+		db.execSQL("DROP TRIGGER IF EXISTS " + OPPONENT_SELF_INSERT_TRIGGER);
+		db.execSQL("DROP TRIGGER IF EXISTS " + OPPONENT_SELF_DELETE_TRIGGER);
+		db.execSQL("DROP TRIGGER IF EXISTS " + OPPONENT_GAME_INSERT_TRIGGER);
+		db.execSQL("DROP TRIGGER IF EXISTS " + OPPONENT_GAME_UPDATE_TRIGGER);
+	}
+	
+	private void dropOpponentViews(SQLiteDatabase db) {
 		db.execSQL("DROP VIEW IF EXISTS " + RESUME_GAME_OPPONENT_VIEW);
 		db.execSQL("DROP VIEW IF EXISTS " + NEW_GAME_OPPONENT_VIEW);
 		db.execSQL("DROP VIEW IF EXISTS " + NEW_GAME_OPPONENT_ID_VIEW);
@@ -172,9 +452,137 @@ public class ChessDBHelper extends SQLiteOpenHelper {
 		db.execSQL("DROP VIEW IF EXISTS " + ACTIVE_GAME_OPPONENT_ID_VIEW);
 		db.execSQL("DROP VIEW IF EXISTS " + ACTIVE_OPPONENT_ID_VIEW);
 		db.execSQL("DROP VIEW IF EXISTS " + ACTIVE_GAME_OPP_ID_WITH_SELF_VIEW);
+	}
+	
+	private void createExplorerTables(SQLiteDatabase db) {
+		db.execSQL(CREATE_TABLE_EXPLORER);
+		db.execSQL(CREATE_TABLE_EXPLORED_GAME);
+	}
+	
+	/**
+	 * Moves the rows of MOVE_TABLE into MOVES_COL of their games, as far
+	 * as they follow on from the moves packed already. Only the rows packed
+	 * are deleted: moves after a gap, and those of games not stored, stay
+	 * in MOVE_TABLE. PLY_COUNT_COL and LAST_MOVE_COL are left as they are,
+	 * the rows having set them (cf. MOVE_INSERT_TRIGGER).
+	 * @param db
+	 */
+	private void packMoves(SQLiteDatabase db) {
+		Cursor c = db.rawQuery("SELECT m." + GAME_ID_COL + ", m." + MOVE_NUM_COL + ", m." + 
+			FROM_SQUARE_COL + ", m." + TO_SQUARE_COL + ", m." + PIECE_COL + 
+			", IFNULL(LENGTH(g." + MOVES_COL + "), 0) / " + Move.PACKED_BYTES + 
+			" FROM " + MOVE_TABLE + " m JOIN " + GAME_TABLE + " g ON g." + GAME_ID_COL + " = m." + GAME_ID_COL + 
+			" ORDER BY m." + GAME_ID_COL + ", m." + MOVE_NUM_COL, null);
+		if (c.getCount() == 0) {
+			c.close();
+			return;
+		}
+		SQLiteStatement update = db.compileStatement("UPDATE " + GAME_TABLE + " SET " + MOVES_COL + 
+			" = CAST(IFNULL(" + MOVES_COL + ", X'') || ? AS BLOB) WHERE " + GAME_ID_COL + " = ?");
+		SQLiteStatement delete = db.compileStatement("DELETE FROM " + MOVE_TABLE + " WHERE " + 
+			GAME_ID_COL + " = ? AND " + MOVE_NUM_COL + " < ?");
+		byte[] buf = new byte[256];
+		// plies: moves packed in the current game, stored: those of them packed before
+		int gameId = -1, plies = 0, stored = 0, games = 0;
+		try {
+			while (c.moveToNext()) {
+				if (c.getInt(0) != gameId) {
+					if (gameId != -1) savePackedMoves(update, delete, gameId, buf, stored, plies);
+					gameId = c.getInt(0);
+					plies = stored = c.getInt(5);
+					++games;
+				}
+				// Skip moves after a gap; those before are there already
+				if (c.getInt(1) != plies) continue;
+				if ((plies - stored + 1) * Move.PACKED_BYTES > buf.length) {
+					byte[] tmp = new byte[2 * buf.length];
+					System.arraycopy(buf, 0, tmp, 0, buf.length);
+					buf = tmp;
+				}
+				Move.write(Move.pack(c.getInt(4), c.getInt(2), c.getInt(3)), buf, (plies - stored) * Move.PACKED_BYTES);
+				++plies;
+			}
+			savePackedMoves(update, delete, gameId, buf, stored, plies);
+		}
+		finally {
+			c.close();
+			update.close();
+			delete.close();
+		}
+		Log.d(TAG, "moves of " + games + " games packed");
+	}
+	
+	/**
+	 * Appends the moves from stored to plies and deletes the rows up to plies
+	 */
+	private static void savePackedMoves(SQLiteStatement update, SQLiteStatement delete, 
+			int gameId, byte[] buf, int stored, int plies) {
+		if (plies > stored) {
+			byte[] moves = new byte[(plies - stored) * Move.PACKED_BYTES];
+			System.arraycopy(buf, 0, moves, 0, moves.length);
+			update.bindBlob(1, moves);
+			update.bindLong(2, gameId);
+			update.execute();
+		}
+		delete.bindLong(1, gameId);
+		delete.bindLong(2, plies);
+		delete.execute();
+	}
+	
+	/**
+	 * Moves the contents of MOVES_COL back to MOVE_TABLE
+	 * @param db
+	 */
+	private void unpackMoves(SQLiteDatabase db) {
+		String[] columns = {GAME_ID_COL, MOVES_COL};
+		Cursor c = db.query(GAME_TABLE, columns, MOVES_COL + " IS NOT NULL", null, null, null, null);
+		if (c.getCount() == 0) {
+			c.close();
+			return;
+		}
+		String insert = "INSERT INTO " + MOVE_TABLE + " (" + GAME_ID_COL + ", " + MOVE_NUM_COL + ", " +
+			FROM_SQUARE_COL + ", " + TO_SQUARE_COL + ", " + PIECE_COL + ") VALUES (?, ?, ?, ?, ?)";
+		Object[] args = new Object[5];
+		int games = 0;
+		try {
+			while (c.moveToNext()) {
+				byte[] moves = c.getBlob(1);
+				args[0] = c.getInt(0);
+				for (int i = 0; i < moves.length / Move.PACKED_BYTES; ++i) {
+					int m = Move.read(moves, i * Move.PACKED_BYTES);
+					args[1] = i;
+					args[2] = Move.packedFrom(m);
+					args[3] = Move.packedTo(m);
+					args[4] = Move.packedPiece(m);
+					db.execSQL(insert, args);
+				}
+				++games;
+			}
+		}
+		finally {
+			c.close();
+		}
+		db.execSQL("UPDATE " + GAME_TABLE + " SET " + MOVES_COL + " = NULL;");
+		Log.d(TAG, "moves of " + games + " games unpacked");
+	}
+	
+	/**
+	 * Drops everything and starts from scratch
+	 * @param db
+	 */
+	private void recreate(SQLiteDatabase db) {
+		dropOpponentViews(db);
 		db.execSQL("DROP VIEW IF EXISTS " + UNFINISHED_GAME_VIEW);
 		db.execSQL("DROP VIEW IF EXISTS " + UNCONFIRMED_GAME_VIEW);
 		
+		db.execSQL("DROP TABLE IF EXISTS " + OPPONENT_SUMMARY_TABLE + ";");
+		db.execSQL("DROP TABLE IF EXISTS " + POSITION_INDEX_TABLE + ";");
+		db.execSQL("DROP TABLE IF EXISTS " + EXPLORED_GAME_TABLE + ";");
+		db.execSQL("DROP TABLE IF EXISTS " + EXPLORER_TABLE + ";");
+		db.execSQL("DROP TABLE IF EXISTS " + PREMOVE_TABLE + ";");
+		db.execSQL("DROP TABLE IF EXISTS " + MINED_GAME_TABLE + ";");
+		db.execSQL("DROP TABLE IF EXISTS " + PUZZLE_TABLE + ";");
+		db.execSQL("DROP TABLE IF EXISTS " + ANALYSIS_TABLE + ";");
 		db.execSQL("DROP TABLE IF EXISTS " + MOVE_TABLE + ";");
 		db.execSQL("DROP TABLE IF EXISTS " + GAME_TABLE + ";");
 		db.execSQL("DROP TABLE IF EXISTS " + PLAYER_TABLE + ";");
@@ -188,17 +596,6 @@ public class ChessDBHelper extends SQLiteOpenHelper {
 		Log.d(TAG, "view " + UNCONFIRMED_GAME_VIEW + " created");
 		db.execSQL(CREATE_UNFINISHED_GAME_VIEW);
 		Log.d(TAG, "view " + UNFINISHED_GAME_VIEW + " created");
-		db.execSQL(CREATE_VIEW_ACTIVE_GAME_OPP_ID_WITH_SELF);
-		db.execSQL(CREATE_VIEW_ACTIVE_OPP_ID);
-		db.execSQL(CREATE_VIEW_ACTIVE_GAME_OPP_ID);
-		Log.d(TAG, "view " + ACTIVE_GAME_OPPONENT_ID_VIEW + " created");
-		db.execSQL(CREATE_VIEW_OPPONENTS);
-		db.execSQL(CREATE_VIEW_NEW_GAME_OPP_ID);
-		Log.d(TAG, "view " + NEW_GAME_OPPONENT_ID_VIEW + " created");				
-		db.execSQL(CREATE_VIEW_NEW_GAME_OPPONENT);
-		Log.d(TAG, "view " + NEW_GAME_OPPONENT_VIEW + " created");
-		db.execSQL(CREATE_VIEW_RESUME_GAME_OPPONENT);
-		Log.d(TAG, "view " + RESUME_GAME_OPPONENT_VIEW + " created");
 		//*/
 	}
 }
@@ -7,16 +7,19 @@ import static com.codemelon.chesswithhumans.Constants.*;
 
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.LinkedList;
-import java.util.ListIterator;
 
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
-import android.database.MatrixCursor;
 import android.database.sqlite.SQLiteConstraintException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
 import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Build;
 import android.util.Log;
 
 /**
@@ -30,28 +33,230 @@ import android.util.Log;
 
 public class ChessDataBaseAdapter {
 	private static final String TAG = "ChessDBAdapter";
+	// Selection for cursor queries by game, with args()
+	private static final String BY_GAME_ID = GAME_ID_COL + " = ?";
+	// For the last move of a game, cf. lastMovesString()
+	private static final String[] LAST_MOVE_COLUMNS = {GAME_ID_COL, PLY_COUNT_COL, LAST_MOVE_COL};
+	/*
+	 * One connection for the whole process, opened by the first adapter
+	 * that needs it and closed when the last one is closed. The main menu
+	 * holds a reference for as long as it exists (cf. ChessWithFriends),
+	 * so open() and close() elsewhere normally only count.
+	 */
+	private static final Object connectionLock = new Object();
+	private static ChessDBHelper dbHelper;
+	private static SQLiteDatabase sharedDb;
+	private static int references;
+	
 	private SQLiteDatabase db;
 	private final Context context;
-	private final ChessDBHelper dbHelper;
+	// Calls to open() not yet matched by close()
+	private int openCount;
+	/*
+	 * Statements run on every move and screen, compiled once per connection
+	 * and shared by all adapters (cf. statement()). Their SQL is fixed,
+	 * values are always bound. Indices into STATEMENT_SQL.
+	 */
+	private static final int INSERT_MOVE = 0;
+	private static final int INSERT_POSITION = 1;
+	private static final int INSERT_GAME = 2;
+	private static final int UPDATE_RESULT = 3;
+	private static final int CHANGES = 4;
+	private static final int FIND_PLAYER_BY_NAME = 5;
+	private static final int FIND_PLAYER_BY_ID = 6;
+	private static final int GAME_RESULT = 7;
+	private static final int PLY_COUNT = 8;
+	private static final int APPEND_MOVE = 9;
+	private static final int MOVES_PACKED = 10;
+	private static final String[] STATEMENT_SQL = {
+		"INSERT INTO " + MOVE_TABLE + " (" + GAME_ID_COL + ", " + MOVE_NUM_COL + ", " + 
+			FROM_SQUARE_COL + ", " + TO_SQUARE_COL + ", " + PIECE_COL + ") VALUES (?, ?, ?, ?, ?)",
+		"INSERT INTO " + POSITION_INDEX_TABLE + " (" + GAME_ID_COL + ", " + PLY_COL + ", " + 
+			POSITION_HASH_COL + ") VALUES (?, ?, ?)",
+		"INSERT INTO " + GAME_TABLE + " (" + GAME_ID_COL + ", " + DATE_STARTED_COL + ", " + 
+			WHITE_COL + ", " + BLACK_COL + ", " + RESULT_COL + ") VALUES (?, ?, ?, ?, ?)",
+		"UPDATE " + GAME_TABLE + " SET " + RESULT_COL + " = ? WHERE " + GAME_ID_COL + " = ?",
+		// For executeUpdate() where executeUpdateDelete() isn't available (before Honeycomb)
+		"SELECT changes()",
+		"SELECT " + PLAYER_ID_COL + " FROM " + PLAYER_TABLE + " WHERE " + PLAYER_NAME_COL + " = ?",
+		"SELECT " + PLAYER_ID_COL + " FROM " + PLAYER_TABLE + " WHERE " + PLAYER_ID_COL + " = ?",
+		"SELECT " + RESULT_COL + " FROM " + GAME_TABLE + " WHERE " + GAME_ID_COL + " = ?",
+		"SELECT " + PLY_COUNT_COL + " FROM " + GAME_TABLE + " WHERE " + GAME_ID_COL + " = ?",
+		// Only appends the next move, cf. move()
+		// PLY_COUNT_COL and LAST_MOVE_COL as MOVE_INSERT_TRIGGER sets them,
+		// since a later move may be waiting in MOVE_TABLE
+		"UPDATE " + GAME_TABLE + " SET " + MOVES_COL + " = CAST(IFNULL(" + MOVES_COL + ", X'') || ?1 AS BLOB), " +
+			PLY_COUNT_COL + " = MAX(" + PLY_COUNT_COL + ", ?4 + 1), " + 
+			LAST_MOVE_COL + " = CASE WHEN " + PLY_COUNT_COL + " <= ?4 THEN ?2 ELSE " + LAST_MOVE_COL + " END" +
+			" WHERE " + GAME_ID_COL + " = ?3 AND IFNULL(LENGTH(" + MOVES_COL + "), 0) = ?4 * " + Move.PACKED_BYTES,
+		"SELECT IFNULL(LENGTH(" + MOVES_COL + "), 0) / " + Move.PACKED_BYTES + " FROM " + GAME_TABLE + 
+			" WHERE " + GAME_ID_COL + " = ?"
+	};
+	private static final SQLiteStatement[] statements = new SQLiteStatement[STATEMENT_SQL.length];
+	// Compilations and reuses of the statements above (not SQLite's own
+	// statement cache, cf. sharedStatementStats()), guarded by connectionLock
+	private static int sharedStatementCompiles;
+	private static int sharedStatementReuses;
 	
 	public ChessDataBaseAdapter(Context ctx) {
 		context = ctx;
-		dbHelper = new ChessDBHelper(context);
 	}
 	
+	/**
+	 * Releases this adapter's reference to the shared connection once
+	 * every open() has been matched
+	 */
 	public void close() {
-		db.close();
+		if (openCount == 0) return;
+		if (--openCount > 0) return;
+		db = null;
+		synchronized (connectionLock) {
+			if (--references == 0) {
+				Log.d(TAG, sharedStatementStats());
+				for (int i = 0; i < statements.length; ++i) {
+					if (statements[i] != null) statements[i].close();
+					statements[i] = null;
+				}
+				sharedDb.close();
+				sharedDb = null;
+				Log.d(TAG, "connection closed");
+			}
+		}
 	}
 	
-	public void open() throws SQLiteException {
+	/**
+	 * The given statement, compiled on first use on the current connection.
+	 * Synchronize on it while binding and executing: it may be shared
+	 * with other threads.
+	 * @param id Index into STATEMENT_SQL
+	 * @return
+	 */
+	private SQLiteStatement statement(int id) {
+		synchronized (connectionLock) {
+			if (statements[id] == null) {
+				statements[id] = db.compileStatement(STATEMENT_SQL[id]);
+				++sharedStatementCompiles;
+			}
+			else {
+				++sharedStatementReuses;
+			}
+			return statements[id];
+		}
+	}
+	
+	/**
+	 * @param id Index into STATEMENT_SQL of a query for one value
+	 * @param defaultValue Returned if there is no row
+	 * @param args Values to bind, strings or numbers
+	 * @return
+	 */
+	private long queryForLong(int id, long defaultValue, Object... args) {
+		SQLiteStatement st = statement(id);
+		synchronized (st) {
+			bind(st, args);
+			try {
+				return st.simpleQueryForLong();
+			} catch (SQLiteDoneException e) {
+				return defaultValue;
+			}
+		}
+	}
+	
+	/**
+	 * @param id Index into STATEMENT_SQL of an UPDATE
+	 * @param args Values to bind
+	 * @return Number of rows updated
+	 */
+	private int executeUpdate(int id, Object... args) {
+		SQLiteStatement st = statement(id);
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+			synchronized (st) {
+				bind(st, args);
+				return st.executeUpdateDelete();
+			}
+		}
+		// Keeps changes() on the connection, and the other threads off it, until it is read
+		db.beginTransaction();
 		try {
-			db = dbHelper.getWritableDatabase();
-		} catch (SQLiteException e) {
-			Log.v(TAG, e.getMessage());
-			db = dbHelper.getReadableDatabase();
+			synchronized (st) {
+				bind(st, args);
+				st.execute();
+			}
+			int changed = (int) queryForLong(CHANGES, 0);
+			db.setTransactionSuccessful();
+			return changed;
+		} finally {
+			db.endTransaction();
+		}
+	}
+	
+	private static void bind(SQLiteStatement st, Object... args) {
+		for (int i = 0; i < args.length; ++i) {
+			if (args[i] instanceof String) st.bindString(i + 1, (String) args[i]);
+			else if (args[i] instanceof byte[]) st.bindBlob(i + 1, (byte[]) args[i]);
+			else st.bindLong(i + 1, ((Number) args[i]).longValue());
+		}
+	}
+	
+	/**
+	 * @return Compilations and reuses of the statements of STATEMENT_SQL
+	 * since the app started
+	 */
+	public static String sharedStatementStats() {
+		synchronized (connectionLock) {
+			int total = sharedStatementCompiles + sharedStatementReuses;
+			return "shared statements: " + sharedStatementReuses + " reused, " + 
+				sharedStatementCompiles + " compiled" +
+				(total > 0 ? " (" + (100 * sharedStatementReuses / total) + "% reused)" : "");
+		}
+	}
+	
+	/**
+	 * Takes a reference to the shared connection, opening it if needed.
+	 * Calls may be nested; each must be matched by close().
+	 * @throws SQLiteException
+	 */
+	public void open() throws SQLiteException {
+		if (openCount++ > 0) return;
+		synchronized (connectionLock) {
+			if (sharedDb == null) {
+				if (dbHelper == null) dbHelper = new ChessDBHelper(context.getApplicationContext());
+				try {
+					sharedDb = dbHelper.getWritableDatabase();
+				} catch (SQLiteException e) {
+					Log.v(TAG, e.getMessage());
+					try {
+						sharedDb = dbHelper.getReadableDatabase();
+					} catch (SQLiteException e2) {
+						openCount = 0;
+						throw e2;
+					}
+				}
+				Log.d(TAG, "connection opened");
+			}
+			++references;
+			db = sharedDb;
 		}
 	}
 	
+	private static String[] args(int id) {
+		return new String[] {Integer.toString(id)};
+	}
+	
+	/*
+	 * Transactions spanning several calls, cf. DatabaseWriter.
+	 * They may be nested around methods using their own transaction.
+	 */
+	public void beginTransaction() {
+		db.beginTransaction();
+	}
+	public void setTransactionSuccessful() {
+		db.setTransactionSuccessful();
+	}
+	public void endTransaction() {
+		db.endTransaction();
+	}
+	
 	public Cursor getSelfCursor() {
 		Log.d(TAG, "retrieving self data");
 		return db.query(SELF_TABLE, null, null, null, null, null, null);
@@ -85,25 +290,11 @@ public class ChessDataBaseAdapter {
 	 * @return
 	 */
 	public int findPlayer(String handle) {
-		String selection = PLAYER_NAME_COL + " = '" + handle + "'";
-		int result = -1;
-		Cursor c = db.query(PLAYER_TABLE, null, selection, null, null, null, null);
-		if (c.moveToFirst()) {
-			result = c.getInt(c.getColumnIndex(PLAYER_ID_COL));
-		}
-		c.close();
-		return result;
+		return (int) queryForLong(FIND_PLAYER_BY_NAME, -1, handle);
 	}
 	
 	public int findPlayer(int pid) {
-		String selection = PLAYER_ID_COL + " = '" + pid + "'";
-		int result = -1;
-		Cursor c = db.query(PLAYER_TABLE, null, selection, null, null, null, null);
-		if (c.moveToFirst()) {
-			result = c.getInt(c.getColumnIndex(PLAYER_ID_COL));
-		}
-		c.close();
-		return result;
+		return (int) queryForLong(FIND_PLAYER_BY_ID, -1, pid);
 	}
 	
 	public boolean addPlayer(int pid, String handle) {
@@ -116,6 +307,21 @@ public class ChessDataBaseAdapter {
 		return true;
 	}
 	
+	/**
+	 * Adds the player or updates the handle of a known one
+	 * @param pid
+	 * @param handle
+	 * @return false on failure
+	 */
+	public boolean upsertPlayer(int pid, String handle) {
+		ContentValues values = new ContentValues(1);
+		values.put(PLAYER_NAME_COL, handle);
+		String whereClause = PLAYER_ID_COL + " = ?";
+		String[] whereArgs = {Integer.toString(pid)};
+		if (db.update(PLAYER_TABLE, values, whereClause, whereArgs) > 0) return true;
+		return addPlayer(pid, handle);
+	}
+	
 	/**
 	 * Enters registration data into both self table and player table
 	 * @param selfId
@@ -195,9 +401,16 @@ public class ChessDataBaseAdapter {
 		db.delete(PLAYER_TABLE, null, null);
 	}
 	
+	/**
+	 * @return Cursor with PLAYER_ID_COL and PLAYER_NAME_COL of the opponents
+	 * without an active game, except player "any", sorted by name
+	 */
 	public Cursor getNewGamePlayers() {
 		Log.d(TAG, "retrieving players from db");
-		return db.query(NEW_GAME_OPPONENT_VIEW, null, null, null, null, null, PLAYER_NAME_COL);
+		String[] columns = {PLAYER_ID_COL, PLAYER_NAME_COL};
+		return db.query(OPPONENT_SUMMARY_TABLE, columns, GAME_ID_COL + " IS NULL AND " + 
+				PLAYER_ID_COL + " != " + PLAYER_ANY_ID, null, null, null, 
+				PLAYER_NAME_COL);
 	}
 	
 	// TODO delete this method. It is very deprecated!
@@ -245,85 +458,40 @@ public class ChessDataBaseAdapter {
 	 * @return
 	 */
 	public long newGame(int gid, int white, int black) {
-		// Set the values to be inserted
-		final int COLUMNS = 5;
-		ContentValues gameValues = new ContentValues(COLUMNS);
-		gameValues.put(GAME_ID_COL, gid);
-		gameValues.put(DATE_STARTED_COL, System.currentTimeMillis() / 1000);
-		gameValues.put(WHITE_COL, white);
-		gameValues.put(BLACK_COL, black);
-		gameValues.put(RESULT_COL, UNFINISHED_GAME);
-		
 		Log.d(TAG, "creating new game with id " + gid);
-		return db.insert(GAME_TABLE, null, gameValues);
+		SQLiteStatement insertGame = statement(INSERT_GAME);
+		synchronized (insertGame) {
+			bind(insertGame, gid, System.currentTimeMillis() / 1000, white, black, UNFINISHED_GAME);
+			try {
+				return insertGame.executeInsert();
+			} catch (SQLiteConstraintException e) {
+				// Same as SQLiteDatabase.insert()
+				Log.e(TAG, "error inserting game " + gid + ": " + e.getMessage());
+				return -1;
+			}
+		}
 	}
 	
+	/**
+	 * Opponents with an active game, with the game and whose move it is,
+	 * as kept up to date in OPPONENT_SUMMARY_TABLE
+	 * @return Cursor with PLAYER_ID_COL, PLAYER_NAME_COL, GAME_ID_COL and
+	 * SELF_TO_MOVE_COL (1 if self has the next move, else 0), sorted by name
+	 */
 	public Cursor getActiveGamePlayers() {
 		Log.d(TAG, "retrieving active games from db");
-		Cursor c = db.query(RESUME_GAME_OPPONENT_VIEW, null, null, null, null, null, PLAYER_NAME_COL);
-		
-		String[] columnNames = {PLAYER_ID_COL, PLAYER_NAME_COL, GAME_ID_COL, SELF_TO_MOVE_COL};
-		int initialCapacity = c.getCount();
-		MatrixCursor result = new MatrixCursor(columnNames, initialCapacity);
-		MatrixCursor.RowBuilder builder;
-		if (c.moveToFirst()) {
-			builder = result.newRow();
-			builder.add(c.getInt(c.getColumnIndex(PLAYER_ID_COL)));
-			builder.add(c.getString(c.getColumnIndex(PLAYER_NAME_COL)));
-			builder.add(c.getInt(c.getColumnIndex(GAME_ID_COL)));
-			builder.add(selfToMove(c.getInt(c.getColumnIndex(GAME_ID_COL))));
-			while (c.moveToNext()) {
-				builder = result.newRow();
-				builder.add(c.getInt(c.getColumnIndex(PLAYER_ID_COL)));
-				builder.add(c.getString(c.getColumnIndex(PLAYER_NAME_COL)));
-				builder.add(c.getInt(c.getColumnIndex(GAME_ID_COL)));
-				builder.add(selfToMove(c.getInt(c.getColumnIndex(GAME_ID_COL))));
-			}
-		}
-		c.close();
-		return result;
+		String[] columns = {PLAYER_ID_COL, PLAYER_NAME_COL, GAME_ID_COL, SELF_TO_MOVE_COL};
+		return db.query(OPPONENT_SUMMARY_TABLE, columns, GAME_ID_COL + " IS NOT NULL", null, null, null, 
+				PLAYER_NAME_COL);
 	}
 	
 	/**
-	 * Returns 1 if self has next move, 0 if opponent has next move
-	 * -1 if gameId not found
 	 * @param gameId
-	 * @return
+	 * @param result
+	 * @return Number of rows updated
 	 */
-	private int selfToMove(int gameId) {
-		int selfId = getSelfId();
-		// Get data from game table
-		String[] columns1 = {WHITE_COL, BLACK_COL};
-		String selection1 = GAME_ID_COL + " = " + gameId;
-		Cursor gameCursor = db.query(GAME_TABLE, columns1, selection1, null, null, null, null);
-		if (!gameCursor.moveToFirst()) {
-			gameCursor.close();
-			return -1;
-		}
-		int offset = 1;	// self assumed to be white
-		if (gameCursor.getInt(gameCursor.getColumnIndex(BLACK_COL)) == selfId) {
-			offset = 0;
-		}
-		gameCursor.close();
-		String[] columns2 = {MOVE_NUM_COL};
-		String selection2 = GAME_ID_COL + " = " + gameId;
-		String orderBy2 = MOVE_NUM_COL + " DESC";
-		String limit2 = "1";
-		Cursor moveCursor = db.query(MOVE_TABLE, columns2, selection2, null, null, null, orderBy2, limit2);
-		if (!moveCursor.moveToFirst()) {	// white's move
-			moveCursor.close();
-			return offset;
-		}
-		int result = (moveCursor.getInt(moveCursor.getColumnIndex(MOVE_NUM_COL)) + 1 + offset) % 2;
-		moveCursor.close();
-		return result;
-	}
-	
 	public int setGameResult(int gameId, int result) {
-		ContentValues gameResult = new ContentValues(1);
-		gameResult.put(RESULT_COL, result);
-		String whereClause = GAME_ID_COL + " = " + gameId;
-		return db.update(GAME_TABLE, gameResult, whereClause, null);
+		return executeUpdate(UPDATE_RESULT, result, gameId);
 		// For verification that update works properly:
 		/*
 		int tmp = db.update(GAME_TABLE, gameResult, whereClause, null);
@@ -337,17 +505,119 @@ public class ChessDataBaseAdapter {
 		*/
 	}
 	
-	public long move(int gameId, int moveNum, int from, int to, int piece) throws SQLiteConstraintException {
-		final int COLUMNS = 5;
-		ContentValues moveValues = new ContentValues(COLUMNS);
-		moveValues.put(GAME_ID_COL, gameId);
-		moveValues.put(MOVE_NUM_COL, moveNum);
-		moveValues.put(FROM_SQUARE_COL, from);
-		moveValues.put(TO_SQUARE_COL, to);
-		moveValues.put(PIECE_COL, piece);
-		
+	/**
+	 * Enters a move and indexes the resulting position
+	 * @param gameId
+	 * @param moveNum
+	 * @param from
+	 * @param to
+	 * @param piece
+	 * @param positionHash Hash of the position after the move, 0 if unknown
+	 * (the position is then indexed later, cf. BlunderMiner)
+	 * @return Row id of the move (of the game if ChessDBHelper.PACKED_MOVES
+	 * and the move follows on from those packed), -1 on error
+	 * @throws SQLiteConstraintException
+	 */
+	public long move(int gameId, int moveNum, int from, int to, int piece, long positionHash) 
+			throws SQLiteConstraintException {
 		Log.d(TAG, "adding move " + moveNum + " to database");
-		return db.insert(MOVE_TABLE, null, moveValues);
+		long rowId;
+		if (ChessDBHelper.PACKED_MOVES && appendMove(gameId, moveNum, Move.pack(piece, from, to))) {
+			rowId = gameId;
+			appendWaitingMoves(gameId, moveNum + 1);
+		}
+		else if (ChessDBHelper.PACKED_MOVES && moveNum < queryForLong(MOVES_PACKED, -1, gameId)) {
+			// Same as the constraint violation below
+			Log.e(TAG, "move " + moveNum + " of game " + gameId + " already stored");
+			return -1;
+		}
+		else {
+			// With packed moves, the move waits here for the ones missing before it
+			SQLiteStatement insertMove = statement(INSERT_MOVE);
+			synchronized (insertMove) {
+				bind(insertMove, gameId, moveNum, from, to, piece);
+				try {
+					rowId = insertMove.executeInsert();
+				} catch (SQLiteConstraintException e) {
+					// Same as SQLiteDatabase.insert()
+					Log.e(TAG, "error inserting move " + moveNum + " of game " + gameId + ": " + e.getMessage());
+					return -1;
+				}
+			}
+		}
+		if (rowId != -1 && positionHash != 0L) indexPosition(gameId, moveNum + 1, positionHash);
+		return rowId;
+	}
+	
+	/**
+	 * @param gameId
+	 * @param ply Moves made to reach the position
+	 * @param positionHash
+	 */
+	private void indexPosition(int gameId, int ply, long positionHash) {
+		SQLiteStatement insertPosition = statement(INSERT_POSITION);
+		synchronized (insertPosition) {
+			bind(insertPosition, gameId, ply, positionHash);
+			insertPosition.executeInsert();
+		}
+	}
+	
+	/**
+	 * Appends a move to MOVES_COL of its game
+	 * @return false if the move doesn't follow on from the moves packed
+	 */
+	private boolean appendMove(int gameId, int moveNum, int packed) {
+		byte[] bytes = new byte[Move.PACKED_BYTES];
+		Move.write(packed, bytes, 0);
+		return executeUpdate(APPEND_MOVE, bytes, packed, gameId, moveNum) == 1;
+	}
+	
+	/**
+	 * Appends the moves of a game waiting in MOVE_TABLE as far as they
+	 * follow on from the packed ones, indexes their positions and deletes
+	 * their rows
+	 * @param gameId
+	 * @param next Number of moves packed
+	 */
+	private void appendWaitingMoves(int gameId, int next) {
+		String[] columns = {MOVE_NUM_COL, FROM_SQUARE_COL, TO_SQUARE_COL, PIECE_COL};
+		String selection = GAME_ID_COL + " = ? AND " + MOVE_NUM_COL + " >= ?";
+		String[] selectionArgs = {Integer.toString(gameId), Integer.toString(next)};
+		int first = next;
+		Position p = null;
+		Cursor c = db.query(MOVE_TABLE, columns, selection, selectionArgs, null, null, MOVE_NUM_COL);
+		try {
+			while (c.moveToNext() && c.getInt(0) == next) {
+				// Rare, so the game is only replayed here
+				if (p == null) p = new Position(moveList(gameId));
+				if (!appendMove(gameId, next, Move.pack(c.getInt(3), c.getInt(1), c.getInt(2)))) break;
+				p.move(c.getInt(1), c.getInt(2), c.getInt(3));
+				indexPosition(gameId, ++next, p.hash());
+			}
+		} finally {
+			c.close();
+		}
+		if (next > first) {
+			db.delete(MOVE_TABLE, GAME_ID_COL + " = ? AND " + MOVE_NUM_COL + " < ?", 
+					new String[] {Integer.toString(gameId), Integer.toString(next)});
+			Log.d(TAG, (next - first) + " waiting moves of game " + gameId + " packed");
+		}
+	}
+	
+	/**
+	 * All occurrences of a position in the stored games,
+	 * e.g. to find earlier games that reached the current position.
+	 * A game appears more than once if the position was repeated in it.
+	 * @param positionHash
+	 * @return Cursor with GAME_ID_COL and PLY_COL (moves made to reach the position),
+	 * most recent games first
+	 */
+	public Cursor findPosition(long positionHash) {
+		String[] columns = {GAME_ID_COL, PLY_COL};
+		String selection = POSITION_HASH_COL + " = ?";
+		String[] selectionArgs = {Long.toString(positionHash)};
+		String orderBy = GAME_ID_COL + " DESC, " + PLY_COL;
+		return db.query(POSITION_INDEX_TABLE, columns, selection, selectionArgs, null, null, orderBy);
 	}
 	
 	/**
@@ -360,8 +630,8 @@ public class ChessDataBaseAdapter {
 	 * @throws IllegalArgumentException
 	 */
 	public boolean white(int selfId, int gameId) throws IllegalArgumentException {
-		String selection = GAME_ID_COL + " = " + gameId;
-		Cursor gameCursor = db.query(GAME_TABLE, null, selection, null, null, null, null);
+		String[] columns = {WHITE_COL, BLACK_COL};
+		Cursor gameCursor = db.query(GAME_TABLE, columns, BY_GAME_ID, args(gameId), null, null, null);
 		try {
 			// Throw an exception if row not found
 			if (gameCursor.getCount() == 0) throw new IllegalArgumentException(TAG + ": Game does not exist");
@@ -378,8 +648,23 @@ public class ChessDataBaseAdapter {
 	}
 	
 	public ArrayList<Move> moveList(int gameId) {
-		String selection = GAME_ID_COL + " = " + gameId;
-		Cursor moveListCursor = db.query(MOVE_TABLE, null, selection, null, null, null, MOVE_NUM_COL);
+		if (ChessDBHelper.PACKED_MOVES) {
+			String[] columns = {MOVES_COL};
+			Cursor c = db.query(GAME_TABLE, columns, BY_GAME_ID, args(gameId), null, null, null);
+			try {
+				byte[] moves = c.moveToFirst() ? c.getBlob(0) : null;
+				int movesMade = moves == null ? 0 : moves.length / Move.PACKED_BYTES;
+				ArrayList<Move> result = new ArrayList<Move>(movesMade);
+				for (int i = 0; i < movesMade; ++i) {
+					result.add(Move.unpack(Move.read(moves, i * Move.PACKED_BYTES)));
+				}
+				return result;
+			} finally {
+				c.close();
+			}
+		}
+		String[] columns = {FROM_SQUARE_COL, TO_SQUARE_COL, PIECE_COL};
+		Cursor moveListCursor = db.query(MOVE_TABLE, columns, BY_GAME_ID, args(gameId), null, null, MOVE_NUM_COL);
 		try {
 			int movesMade = moveListCursor.getCount();
 			ArrayList<Move> result = new ArrayList<Move>(movesMade);
@@ -398,6 +683,268 @@ public class ChessDataBaseAdapter {
 		}
 	}
 	
+	/**
+	 * Stores the analysis of a game, replacing any earlier one
+	 * @param gameId
+	 * @param analysis
+	 */
+	public void saveAnalysis(int gameId, GameAnalysis analysis) {
+		final int COLUMNS = 5;
+		ContentValues values = new ContentValues(COLUMNS);
+		db.beginTransaction();
+		try {
+			db.delete(ANALYSIS_TABLE, BY_GAME_ID, args(gameId));
+			for (int ply = 0; ply < analysis.plies(); ++ply) {
+				values.clear();
+				values.put(GAME_ID_COL, gameId);
+				values.put(MOVE_NUM_COL, ply);
+				values.put(SCORE_COL, analysis.score(ply));
+				values.put(LOSS_COL, analysis.loss(ply));
+				values.put(LINES_COL, analysis.encodeLines(ply));
+				db.insert(ANALYSIS_TABLE, null, values);
+			}
+			db.setTransactionSuccessful();
+			Log.d(TAG, "analysis of game " + gameId + " saved");
+		}
+		finally {
+			db.endTransaction();
+		}
+	}
+	
+	/**
+	 * Returns the stored analysis of the given game,
+	 * null if there is none covering all of its moves
+	 * @param gameId
+	 * @param plies Number of moves in the game
+	 * @return
+	 */
+	public GameAnalysis getAnalysis(int gameId, int plies) {
+		String[] columns = {MOVE_NUM_COL, SCORE_COL, LOSS_COL, LINES_COL};
+		Cursor c = db.query(ANALYSIS_TABLE, columns, BY_GAME_ID, args(gameId), null, null, MOVE_NUM_COL);
+		try {
+			if (plies == 0 || c.getCount() != plies) return null;
+			GameAnalysis result = new GameAnalysis(plies);
+			int moveNumCol = c.getColumnIndex(MOVE_NUM_COL);
+			int scoreCol = c.getColumnIndex(SCORE_COL);
+			int lossCol = c.getColumnIndex(LOSS_COL);
+			int linesCol = c.getColumnIndex(LINES_COL);
+			while (c.moveToNext()) {
+				result.setPly(c.getInt(moveNumCol), c.getInt(scoreCol), c.getInt(lossCol),
+						c.getString(linesCol));
+			}
+			return result;
+		} finally {
+			c.close();
+		}
+	}
+	
+	/**
+	 * Finished games not yet processed by BlunderMiner, oldest first
+	 * @return
+	 */
+	public LinkedList<Integer> getUnminedGames() {
+		LinkedList<Integer> result = new LinkedList<Integer>();
+		String[] columns = {GAME_ID_COL};
+		String selection = RESULT_COL + " >= " + WHITE_WINS + " AND " + GAME_ID_COL +
+			" NOT IN (SELECT " + GAME_ID_COL + " FROM " + MINED_GAME_TABLE + ")";
+		Cursor c = db.query(GAME_TABLE, columns, selection, null, null, null, GAME_ID_COL);
+		while (c.moveToNext()) {
+			result.add(c.getInt(0));
+		}
+		c.close();
+		return result;
+	}
+	
+	/**
+	 * Games not classified by opening yet that have at least
+	 * the given number of moves or are over
+	 * @param plies
+	 * @return
+	 */
+	public LinkedList<Integer> getUnclassifiedGames(int plies) {
+		LinkedList<Integer> result = new LinkedList<Integer>();
+		String[] columns = {GAME_ID_COL};
+		String selection = ECO_COL + " IS NULL AND (" + RESULT_COL + " >= " + WHITE_WINS +
+			" OR " + PLY_COUNT_COL + " >= " + plies + ")";
+		Cursor c = db.query(GAME_TABLE, columns, selection, null, null, null, GAME_ID_COL);
+		while (c.moveToNext()) {
+			result.add(c.getInt(0));
+		}
+		c.close();
+		return result;
+	}
+	
+	/**
+	 * @param gameId
+	 * @param eco ECO code, EcoClassifier.UNKNOWN if none
+	 * @return
+	 */
+	public int setEco(int gameId, String eco) {
+		ContentValues values = new ContentValues(1);
+		values.put(ECO_COL, eco);
+		return db.update(GAME_TABLE, values, BY_GAME_ID, args(gameId));
+	}
+	
+	/**
+	 * Games whose ECO code starts with the given prefix,
+	 * e.g. "C" for all open games or "C50" for the Italian
+	 * @param ecoPrefix Letters and digits only
+	 * @return Cursor over all columns of the game table, ordered by ECO code
+	 */
+	public Cursor getGamesByEco(String ecoPrefix) {
+		// GLOB rather than LIKE so that the index on ECO_COL is used
+		String selection = ECO_COL + " GLOB ?";
+		String[] selectionArgs = {ecoPrefix + "*"};
+		return db.query(GAME_TABLE, null, selection, selectionArgs, null, null,
+				ECO_COL + ", " + GAME_ID_COL);
+	}
+	
+	/**
+	 * Games with moves missing from the position index, e.g. those
+	 * stored before the index existed, oldest first
+	 * @return
+	 */
+	public LinkedList<Integer> getUnindexedGames() {
+		LinkedList<Integer> result = new LinkedList<Integer>();
+		String[] columns = {GAME_ID_COL};
+		String selection = PLY_COUNT_COL + " > (SELECT COUNT(*) FROM " + POSITION_INDEX_TABLE + " i" +
+			" WHERE i." + GAME_ID_COL + " = " + GAME_TABLE + "." + GAME_ID_COL + ")";
+		Cursor c = db.query(GAME_TABLE, columns, selection, null, null, null, GAME_ID_COL);
+		while (c.moveToNext()) {
+			result.add(c.getInt(0));
+		}
+		c.close();
+		return result;
+	}
+	
+	/**
+	 * Enters all positions of a game in the position index, in one transaction
+	 * @param gameId
+	 * @param hashes Position after each move
+	 * @param plies Number of entries to use
+	 */
+	public void indexPositions(int gameId, long[] hashes, int plies) {
+		SQLiteStatement insertPosition = statement(INSERT_POSITION);
+		db.beginTransaction();
+		try {
+			synchronized (insertPosition) {
+				for (int i = 0; i < plies; ++i) {
+					// Existing rows are replaced (cf. ChessDBHelper)
+					bind(insertPosition, gameId, i + 1, hashes[i]);
+					insertPosition.executeInsert();
+				}
+			}
+			db.setTransactionSuccessful();
+		}
+		finally {
+			db.endTransaction();
+		}
+	}
+	
+	/**
+	 * Finished games not yet added to the opening explorer, oldest first
+	 * @return
+	 */
+	public LinkedList<Integer> getUnexploredGames() {
+		LinkedList<Integer> result = new LinkedList<Integer>();
+		String[] columns = {GAME_ID_COL};
+		String selection = RESULT_COL + " >= " + WHITE_WINS + " AND " + GAME_ID_COL +
+			" NOT IN (SELECT " + GAME_ID_COL + " FROM " + EXPLORED_GAME_TABLE + ")";
+		Cursor c = db.query(GAME_TABLE, columns, selection, null, null, null, GAME_ID_COL);
+		while (c.moveToNext()) {
+			result.add(c.getInt(0));
+		}
+		c.close();
+		return result;
+	}
+	
+	/**
+	 * Counts the moves of a finished game in the opening explorer
+	 * and marks the game as added, all in one transaction
+	 * @param gameId
+	 * @param result WHITE_WINS, BLACK_WINS or DRAW
+	 * @param hashes Position before each move
+	 * @param moves Packed moves
+	 * @param plies Number of entries to use
+	 */
+	public void addToExplorer(int gameId, int result, long[] hashes, int[] moves, int plies) {
+		String resultCol = result == WHITE_WINS ? WHITE_WINS_COL : 
+			(result == BLACK_WINS ? BLACK_WINS_COL : DRAWS_COL);
+		String insert = "INSERT OR IGNORE INTO " + EXPLORER_TABLE + " (" +
+			POSITION_HASH_COL + ", " + PACKED_MOVE_COL + ") VALUES (?, ?)";
+		String update = "UPDATE " + EXPLORER_TABLE + " SET " + GAMES_COL + " = " + GAMES_COL + " + 1, " +
+			resultCol + " = " + resultCol + " + 1" +
+			" WHERE " + POSITION_HASH_COL + " = ? AND " + PACKED_MOVE_COL + " = ?";
+		Object[] args = new Object[2];
+		db.beginTransaction();
+		try {
+			for (int i = 0; i < plies; ++i) {
+				args[0] = hashes[i];
+				args[1] = moves[i];
+				db.execSQL(insert, args);
+				db.execSQL(update, args);
+			}
+			ContentValues values = new ContentValues(1);
+			values.put(GAME_ID_COL, gameId);
+			db.insert(EXPLORED_GAME_TABLE, null, values);
+			db.setTransactionSuccessful();
+		}
+		finally {
+			db.endTransaction();
+		}
+	}
+	
+	/**
+	 * Moves played from the given position in the user's finished games,
+	 * most frequent first. Uses the primary key index.
+	 * @param positionHash
+	 * @return Cursor over all columns of the explorer table
+	 */
+	public Cursor getExplorerMoves(long positionHash) {
+		String selection = POSITION_HASH_COL + " = ?";
+		String[] selectionArgs = {Long.toString(positionHash)};
+		return db.query(EXPLORER_TABLE, null, selection, selectionArgs, null, null, GAMES_COL + " DESC");
+	}
+	
+	/**
+	 * Stores the puzzles found in a game and marks the game as processed,
+	 * all in one transaction so that an interrupted run leaves no trace
+	 * @param gameId
+	 * @param puzzles Each entry is {move number, position hash, best move, loss}
+	 */
+	public void savePuzzles(int gameId, LinkedList<long[]> puzzles) {
+		final int COLUMNS = 5;
+		ContentValues values = new ContentValues(COLUMNS);
+		db.beginTransaction();
+		try {
+			for (long[] puzzle : puzzles) {
+				values.clear();
+				values.put(GAME_ID_COL, gameId);
+				values.put(MOVE_NUM_COL, (int) puzzle[0]);
+				values.put(POSITION_HASH_COL, puzzle[1]);
+				values.put(BEST_MOVE_COL, (int) puzzle[2]);
+				values.put(LOSS_COL, (int) puzzle[3]);
+				db.insert(PUZZLE_TABLE, null, values);
+			}
+			values.clear();
+			values.put(GAME_ID_COL, gameId);
+			db.insert(MINED_GAME_TABLE, null, values);
+			db.setTransactionSuccessful();
+			Log.d(TAG, puzzles.size() + " puzzles saved for game " + gameId);
+		}
+		finally {
+			db.endTransaction();
+		}
+	}
+	
+	/**
+	 * Puzzles, worst blunders first
+	 * @return Cursor over all columns of the puzzle table
+	 */
+	public Cursor getPuzzles() {
+		return db.query(PUZZLE_TABLE, null, null, null, null, null, LOSS_COL + " DESC");
+	}
+	
 	/**
 	 * Returns a usable input for insert_moves.php
 	 * Outputs only the first move for those open games where
@@ -405,60 +952,229 @@ public class ChessDataBaseAdapter {
 	 * @return
 	 */
 	public String activeGameMoveInitializer() {
-		StringBuilder lostMoves = new StringBuilder();
+		String selection = PLY_COUNT_COL + " = 1";
+		Cursor c = db.query(UNFINISHED_GAME_VIEW, LAST_MOVE_COLUMNS, selection, null, null, null, null);
+		try {
+			return lastMovesString(c);
+		} finally {
+			c.close();
+		}
+	}
+	
+	/**
+	 * Enters the moves returned from the server that are newer than the
+	 * local ones, and the results, which the server must provide valid.
+	 * The move numbers of all games concerned are read in one query and
+	 * everything is written in one transaction.
+	 * @param serverMoves "gameId,moveNumber,from,to,piece" per line
+	 * @param serverResults "gameId,result" per line
+	 * @return Games for which moves were entered, e.g. for playPremoves()
+	 */
+	public LinkedList<Integer> ingestFromServer(LinkedList<String> serverMoves, 
+			LinkedList<String> serverResults) {
+		LinkedList<Integer> updatedGames = new LinkedList<Integer>();
+		// Parse everything before touching the database
+		final int fields = 5;
+		long[] moves = new long[serverMoves.size()];
+		int n = 0;
+		String[] values;
+		int[] move = new int[fields];
+		for (String line : serverMoves) {
+			values = line.split(",");
+			for (int i = 0; i < fields; ++i) {
+				move[i] = Integer.parseInt(values[i]);
+			}
+			// Sorts by game and move number, cf. unpacking below
+			moves[n++] = ((long) move[0] << 32) | ((long) move[1] << 18) | Move.pack(move[4], move[2], move[3]);
+		}
+		Arrays.sort(moves);
+		LinkedList<int[]> results = new LinkedList<int[]>();
+		for (String line : serverResults) {
+			values = line.split(",");
+			if (values[1].matches("[0-9]+")) {
+				results.add(new int[] {Integer.parseInt(values[0]), Integer.parseInt(values[1])});
+			}
+		}
+		if (n == 0 && results.isEmpty()) return updatedGames;
 		
-		LinkedList<Integer> games = getOpenGames();
-		boolean first = true;
-		for (int game : games) {
-			if (getLastMove(game) == 0) {
-				if (!first) lostMoves.append(";");
-				else first = false;
-				lostMoves.append(getLastMoveString(game));
+		HashMap<Integer, Integer> plyCounts = plyCounts(moves, n);
+		db.beginTransaction();
+		try {
+			int gameId, moveNum, packed;
+			Integer plies;
+			Position p = null;
+			int positionGame = -1;
+			long positionHash;
+			for (int i = 0; i < n; ++i) {
+				gameId = (int) (moves[i] >>> 32);
+				moveNum = (int) (moves[i] >>> 18) & 0x3fff;
+				packed = (int) moves[i] & 0xffff;
+				plies = plyCounts.get(gameId);
+				// As before, moves of a game missing locally are entered too
+				if (plies == null) plies = 0;
+				if (moveNum < plies) continue;
+				// Index positions as long as the moves follow on from the stored ones
+				positionHash = 0L;
+				if (moveNum == plies && positionGame != gameId) {
+					p = new Position(moveList(gameId));
+					positionGame = gameId;
+				}
+				// Not if a stored move is missing
+				boolean known = positionGame == gameId && p.movesMade() == moveNum;
+				if (known) {
+					p.move(Move.packedFrom(packed), Move.packedTo(packed), Move.packedPiece(packed));
+					positionHash = p.hash();
+				}
+				if (move(gameId, moveNum, Move.packedFrom(packed), Move.packedTo(packed), 
+						Move.packedPiece(packed), positionHash) == -1) {
+					// Keep p at the stored moves
+					if (known) p.unmove();
+					continue;
+				}
+				plyCounts.put(gameId, moveNum + 1);
+				Log.d(TAG, "Entering move " + moveNum + " for game " + gameId);
+				if (!updatedGames.contains(gameId)) updatedGames.add(gameId);
+			}
+			for (int[] result : results) {
+				setGameResult(result[0], result[1]);
+				Log.d(TAG, "updating result for game " + result[0] + " to " + result[1]);
 			}
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
 		}
-		return lostMoves.toString();
+		return updatedGames;
 	}
 	
-	public void processMovesFromServer(LinkedList<String> serverMoves) {
-		if (serverMoves.isEmpty()) return;
-		String[] move;
-		final int gameIdCol = 0;
-		final int moveIdCol = 1;
-		final int fromCol = 2;
-		final int toCol = 3;
-		final int pieceCol = 4;
-		ListIterator<String> it = serverMoves.listIterator();
-		while (it.hasNext()) {
-			move = it.next().split(",");
-			if (getLastMove(Integer.parseInt(move[gameIdCol])) < Integer.parseInt(move[moveIdCol])) {
-				move(Integer.parseInt(move[gameIdCol]), Integer.parseInt(move[moveIdCol]), 
-						Integer.parseInt(move[fromCol]), Integer.parseInt(move[toCol]), 
-						Integer.parseInt(move[pieceCol]));
-				Log.d(TAG, "Entering move " + move[moveIdCol] + " for game " + move[gameIdCol]);
+	/**
+	 * @param moves Sorted as in ingestFromServer()
+	 * @param n
+	 * @return Moves made in each of the games of the given moves that exist locally
+	 */
+	private HashMap<Integer, Integer> plyCounts(long[] moves, int n) {
+		HashMap<Integer, Integer> result = new HashMap<Integer, Integer>();
+		if (n == 0) return result;
+		StringBuilder selection = new StringBuilder(GAME_ID_COL + " IN (");
+		ArrayList<String> args = new ArrayList<String>();
+		int gameId, last = -1;
+		for (int i = 0; i < n; ++i) {
+			gameId = (int) (moves[i] >>> 32);
+			if (gameId == last) continue;
+			if (!args.isEmpty()) selection.append(", ");
+			selection.append("?");
+			args.add(Integer.toString(gameId));
+			last = gameId;
+		}
+		selection.append(")");
+		String[] columns = {GAME_ID_COL, PLY_COUNT_COL};
+		Cursor c = db.query(GAME_TABLE, columns, selection.toString(), args.toArray(new String[args.size()]), 
+				null, null, null);
+		try {
+			while (c.moveToNext()) {
+				result.put(c.getInt(0), c.getInt(1));
 			}
+		} finally {
+			c.close();
 		}
+		return result;
+	}
+	
+	/**
+	 * Queues a conditional move, replacing any other reply
+	 * queued for the same position
+	 * @param gameId
+	 * @param positionHash Hash of the position after the opponent's move
+	 * @param from
+	 * @param to
+	 * @param piece
+	 * @return
+	 */
+	public long addPremove(int gameId, long positionHash, int from, int to, int piece) {
+		final int COLUMNS = 5;
+		ContentValues values = new ContentValues(COLUMNS);
+		values.put(GAME_ID_COL, gameId);
+		values.put(POSITION_HASH_COL, positionHash);
+		values.put(FROM_SQUARE_COL, from);
+		values.put(TO_SQUARE_COL, to);
+		values.put(PIECE_COL, piece);
+		return db.insert(PREMOVE_TABLE, null, values);
+	}
+	
+	public int deletePremoves(int gameId) {
+		return db.delete(PREMOVE_TABLE, BY_GAME_ID, args(gameId));
 	}
 	
 	/**
-	 * Simply enters the results returned from server--so the server must provide
-	 * valid results to enter
-	 * @param serverResults
+	 * Plays the queued conditional move, if any, in each of the given games
+	 * whose current position matches one. The reply must be legal and must
+	 * not end the game (such moves are left to the user).
+	 * Call after ingestFromServer().
+	 * @param games
+	 * @return Moves played, usable as move_list for update_moves_and_results.php
 	 */
-	public void processResultsFromServer(LinkedList<String> serverResults) {
-		if (serverResults.isEmpty()) return;
-		final int gameIdCol = 0;
-		final int resultCol = 1;
-		String[] gameRes;
-		ListIterator<String> it = serverResults.listIterator();
-		while (it.hasNext()) {
-			gameRes = it.next().split(",");
-			if (gameRes[resultCol].matches("[0-9]+")) {
-				setGameResult(Integer.parseInt(gameRes[gameIdCol]), 
-						Integer.parseInt(gameRes[resultCol]));
-				Log.d(TAG, "updating result for game " + gameRes[gameIdCol] +
-						" to " + gameRes[resultCol]);
+	public String playPremoves(LinkedList<Integer> games) {
+		StringBuilder played = new StringBuilder();
+		LinkedList<Integer> openGames = getOpenGames();
+		String[] columns = {FROM_SQUARE_COL, TO_SQUARE_COL, PIECE_COL};
+		String selection = GAME_ID_COL + " = ? AND " + POSITION_HASH_COL + " = ?";
+		String[] selectionArgs;
+		Cursor c;
+		Position p;
+		int from, to, piece, moveNum;
+		for (int gameId : games) {
+			if (!openGames.contains(gameId)) continue;
+			// Saves replaying games without premoves
+			if (!hasPremoves(gameId)) continue;
+			p = new Position(moveList(gameId));
+			selectionArgs = new String[] {Integer.toString(gameId), Long.toString(p.hash())};
+			c = db.query(PREMOVE_TABLE, columns, selection, selectionArgs, null, null, null);
+			try {
+				if (!c.moveToFirst()) continue;
+				from = c.getInt(0);
+				to = c.getInt(1);
+				piece = c.getInt(2);
+			} finally {
+				c.close();
 			}
+			db.delete(PREMOVE_TABLE, selection, selectionArgs);
+			if (!isPremoveValid(p, from, to, piece)) {
+				Log.d(TAG, "premove in game " + gameId + " no longer valid");
+				continue;
+			}
+			moveNum = p.movesMade();
+			p.move(from, to, piece);
+			move(gameId, moveNum, from, to, piece, p.hash());
+			Log.d(TAG, "premove " + moveNum + " played in game " + gameId);
+			if (played.length() > 0) played.append(";");
+			played.append(gameId + "," + moveNum + "," + from + "," + to + "," + piece);
 		}
+		return played.toString();
+	}
+	
+	private boolean hasPremoves(int gameId) {
+		String[] columns = {GAME_ID_COL};
+		Cursor c = db.query(PREMOVE_TABLE, columns, BY_GAME_ID, args(gameId), null, null, null, "1");
+		boolean result = c.getCount() > 0;
+		c.close();
+		return result;
+	}
+	
+	private static boolean isPremoveValid(Position p, int from, int to, int piece) {
+		if (!p.isMove(from, to)) return false;
+		int moved = p.getPiece(from);
+		if (piece != moved) {
+			// Only a pawn reaching the last rank may change
+			int lastRow = moved / Position.PIECES == Position.WHITE ? 7 : 0;
+			if (moved % Position.PIECES != Position.PAWN || to / Position.BOARD_SIZE != lastRow
+					|| piece / Position.PIECES != moved / Position.PIECES
+					|| piece % Position.PIECES == Position.PAWN || piece % Position.PIECES == Position.KING) {
+				return false;
+			}
+		}
+		p.move(from, to, piece);
+		boolean gameGoesOn = p.legalMoveExists() && !p.checkmateImpossible();
+		p.unmove();
+		return gameGoesOn;
 	}
 	
 	// TODO	
@@ -495,7 +1211,7 @@ public class ChessDataBaseAdapter {
 			localMoveNum = getLastMove(gameId);
 			if (remoteMoveNum > localMoveNum) {
 				move(gameId, remoteMoveNum, Integer.parseInt(move[fromIndex]), 
-						Integer.parseInt(move[toIndex]), Integer.parseInt(move[pieceIndex]));
+						Integer.parseInt(move[toIndex]), Integer.parseInt(move[pieceIndex]), 0L);
 			}
 			else if (remoteMoveNum < localMoveNum) {
 				if (!first) lostMoves.append(";");
@@ -636,47 +1352,53 @@ public class ChessDataBaseAdapter {
 	 * @return
 	 */
 	private int getLastMove(int gameId) {
-		int result = -1;
-		String[] columns = {MOVE_NUM_COL};
-		String selection = GAME_ID_COL + " = " + gameId;
-		String orderBy = MOVE_NUM_COL + " DESC";
-		String limit = "1";		
-		Cursor c = db.query(MOVE_TABLE, columns, selection, null, null, null, orderBy, limit);
-		if (c.getCount() > 0) {
-			c.moveToFirst();
-			result = c.getInt(c.getColumnIndex(MOVE_NUM_COL));
-		}
-		c.close();
-		return result;
+		return plyCount(gameId) - 1;
+	}
+	
+	/**
+	 * @param gameId
+	 * @return Number of moves made in the given game (cf. PLY_COUNT_COL)
+	 */
+	public int plyCount(int gameId) {
+		return (int) queryForLong(PLY_COUNT, 0, gameId);
 	}
 	
 	private String getLastMoveString(int gameId) {
-		String result = "";
-		String selection = GAME_ID_COL + " = " + gameId;
-		String orderBy = MOVE_NUM_COL + " DESC";
-		String limit = "1";		
-		Cursor c = db.query(MOVE_TABLE, null, selection, null, null, null, orderBy, limit);
-		if (c.getCount() > 0) {
-			c.moveToFirst();
-			result = c.getInt(c.getColumnIndex(GAME_ID_COL)) + "," +
-				c.getInt(c.getColumnIndex(MOVE_NUM_COL)) + "," +
-				c.getInt(c.getColumnIndex(FROM_SQUARE_COL)) + "," +
-				c.getInt(c.getColumnIndex(TO_SQUARE_COL)) + "," +
-				c.getInt(c.getColumnIndex(PIECE_COL));
+		Cursor c = db.query(GAME_TABLE, LAST_MOVE_COLUMNS, BY_GAME_ID, args(gameId), null, null, null);
+		try {
+			return lastMovesString(c);
+		} finally {
+			c.close();
 		}
-		c.close();
-		return result;
 	}
 	
 	public String getAllLastMovesString() {
+		Cursor c = db.query(UNCONFIRMED_GAME_VIEW, LAST_MOVE_COLUMNS, null, null, null, null, null);
+		try {
+			return lastMovesString(c);
+		} finally {
+			c.close();
+		}
+	}
+	
+	/**
+	 * "gameId,moveNumber,from,to,piece" for each row with a move,
+	 * separated by semicolons
+	 * @param c Cursor with LAST_MOVE_COLUMNS
+	 * @return
+	 */
+	private static String lastMovesString(Cursor c) {
 		StringBuilder builder = new StringBuilder();
-		LinkedList<Integer> games = getUnconfirmedGames();
-		if (!games.isEmpty()) {
-			ListIterator<Integer> it = games.listIterator();
-			builder.append(getLastMoveString(it.next()));
-			while (it.hasNext()) {
-				builder.append(";" + getLastMoveString(it.next()));
-			}
+		int m;
+		while (c.moveToNext()) {
+			if (c.getInt(1) == 0) continue;
+			if (builder.length() > 0) builder.append(";");
+			m = c.getInt(2);
+			builder.append(c.getInt(0)).append(",")
+				.append(c.getInt(1) - 1).append(",")
+				.append(Move.packedFrom(m)).append(",")
+				.append(Move.packedTo(m)).append(",")
+				.append(Move.packedPiece(m));
 		}
 		return builder.toString();
 	}
@@ -756,15 +1478,6 @@ public class ChessDataBaseAdapter {
 	 * @return
 	 */
 	public int gameResult(int gameId) {
-		int result = -1;
-		
-		String[] columns = {RESULT_COL};
-		String selection = GAME_ID_COL + " = " + gameId;
-		Cursor c = db.query(GAME_TABLE, columns, selection, null, null, null, null);
-		if (c.moveToFirst()) {
-			result = c.getInt(c.getColumnIndex(RESULT_COL));
-		}
-		c.close();
-		return result;
+		return (int) queryForLong(GAME_RESULT, -1, gameId);
 	}
 }
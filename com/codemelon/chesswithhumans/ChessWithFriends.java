@@ -98,6 +98,8 @@ public class ChessWithFriends extends Activity implements OnClickListener {
         exitButton.setOnClickListener(this);
         
         db = new ChessDataBaseAdapter(this);
+        // Held until onDestroy() so that the other activities reuse the connection
+        db.open();
         challengesUpdate = new LinkedList<String>();
         gamesToCreate = "";
         selfId = -1;
@@ -106,9 +108,7 @@ public class ChessWithFriends extends Activity implements OnClickListener {
          * Otherwise, retrieve selfId and handle
          */
         register();
-        db.open();
         selfId = db.getSelfId();
-        db.close();
         if (selfId > 0) {
         	registered = true;
         	String[] params = {String.valueOf(selfId)};
@@ -125,6 +125,20 @@ public class ChessWithFriends extends Activity implements OnClickListener {
 	        db.close();
 	        if (selfId > 0) registered = true;
     	}
+    	// Use the time the user spends in the main menu for finding puzzles
+    	if (registered) BlunderMiner.start(this);
+    }
+    
+    @Override
+    protected void onPause() {
+    	BlunderMiner.stop();
+    	super.onPause();
+    }
+    
+    @Override
+    protected void onDestroy() {
+    	db.close();
+    	super.onDestroy();
     }
     
     public void onClick(View v) {
@@ -296,7 +310,6 @@ public class ChessWithFriends extends Activity implements OnClickListener {
     private void createGamesForAcceptedChallenges(LinkedList<String> response) {
     	if (response.isEmpty()) return;
     	String[] tmp;
-    	db.open();
     	for (String line : response) {
     		tmp = line.split(",");
     		if (tmp.length != 3) {	// Corrupted value
@@ -308,10 +321,10 @@ public class ChessWithFriends extends Activity implements OnClickListener {
     			Log.e(TAG, "Bad string: " + badBuilder);
     			return;
     		}
-    		db.newGame(Integer.parseInt(tmp[0]), Integer.parseInt(tmp[1]), Integer.parseInt(tmp[2]));
+    		DatabaseWriter.submit(this, new DatabaseWriter.NewGame(Integer.parseInt(tmp[0]), 
+    				Integer.parseInt(tmp[1]), Integer.parseInt(tmp[2])));
     	}
-    	db.close();
-    	Log.d(TAG, "new games entered into local database");
+    	Log.d(TAG, "new games queued for local database");
     	Log.d(TAG, "emptying challengesUpdate");
     	challengesUpdate.clear();
     }
@@ -339,7 +352,6 @@ public class ChessWithFriends extends Activity implements OnClickListener {
     	boolean first = true;
     	// Create comma-separated list of games to add
     	// Enter players into db if necessary
-    	db.open();
     	while (it.hasNext()) {
     		tmp = it.next().split(",");
     		if (tmp.length != 3) { // Corrupted data
@@ -354,11 +366,8 @@ public class ChessWithFriends extends Activity implements OnClickListener {
     		if (!first) gameListBuilder.append(",");
     		else first = false;
     		gameListBuilder.append(tmp[0]);
-    		if (db.findPlayer(Integer.parseInt(tmp[1])) == -1) {
-    			db.addPlayer(Integer.parseInt(tmp[1]), tmp[2]);
-    		}
+    		DatabaseWriter.submit(this, new DatabaseWriter.UpsertPlayer(Integer.parseInt(tmp[1]), tmp[2]));
     	}
-    	db.close();
     	gamesToCreate = gameListBuilder.toString();
     	Log.d(TAG, "gamesToCreate: " + gamesToCreate);
     	if (gamesToCreate.length() > 0) {
@@ -373,7 +382,6 @@ public class ChessWithFriends extends Activity implements OnClickListener {
     	String[] values;
     	int gid, whiteId, blackId, oppId = 0;
     	
-    	db.open();
     	while (it.hasNext()) {
     		line = it.next();
     		values = line.split(",");
@@ -387,12 +395,9 @@ public class ChessWithFriends extends Activity implements OnClickListener {
     		else {
     			oppId = whiteId;
     		}
-    		if (db.findPlayer(oppId) == -1) {
-    			db.addPlayer(oppId, oppHandle);
-    		}
-    		db.newGame(gid, whiteId, blackId);
+    		DatabaseWriter.submit(this, new DatabaseWriter.UpsertPlayer(oppId, oppHandle));
+    		DatabaseWriter.submit(this, new DatabaseWriter.NewGame(gid, whiteId, blackId));
     	}
-    	db.close();
     }
     
     // TODO
@@ -528,10 +533,21 @@ public class ChessWithFriends extends Activity implements OnClickListener {
     			serverResults.add(movesAndResults[i].substring(beginIndex));
     		}
     	}
-    	db.open();
-    	db.processMovesFromServer(serverMoves);
-    	db.processResultsFromServer(serverResults);
-    	db.close();
-    	startSelectSavedGame();
+    	if (!serverMoves.isEmpty() || !serverResults.isEmpty()) {
+    		// Whatever was pondered stays in the engine's transposition table
+    		Ponderer.stop();
+    	}
+    	DatabaseWriter.Command<String> update = new DatabaseWriter.ServerUpdate(serverMoves, serverResults);
+    	update.setCallback(new DatabaseWriter.Callback<String>() {
+    		public void done(String premoves) {
+    			if (premoves != null && premoves.length() > 0) {
+    				// Conditional moves go out right away; calls startSelectSavedGame() when done
+    				new SendLostMovesTask().execute(premoves);
+    				return;
+    			}
+    			startSelectSavedGame();
+    		}
+    	});
+    	DatabaseWriter.submit(this, update);
     }
 }
\ No newline at end of file
@@ -13,17 +13,51 @@ import android.net.Uri;
  */
 public interface Constants {
 	public static final String DATABASE_NAME = "chess.db";
+	// Opening classification (cf. EcoClassifier), in the app's private files directory
+	public static final String ECO_FILE = "eco.bin";
+	// Preference: analyze the game in the background while the opponent is to move (cf. Ponderer)
+	public static final String PONDER_PREF = "ponder_while_waiting";
+	// Warn about hanging material before a move is confirmed (cf. BlunderGuard)
+	public static final boolean CHECK_FOR_BLUNDERS = true;
 	
 	// Tables
 	public static final String MOVE_TABLE = "move";
 	public static final String GAME_TABLE = "game";
 	public static final String PLAYER_TABLE = "player";
 	public static final String SELF_TABLE = "self_data";
+	// Engine review of finished games, cf. GameAnalysis
+	public static final String ANALYSIS_TABLE = "analysis";
+	// Training positions found by BlunderMiner
+	public static final String PUZZLE_TABLE = "puzzle";
+	public static final String PUZZLE_LOSS_INDEX = "puzzle_loss_index";
+	// Games already processed by BlunderMiner
+	public static final String MINED_GAME_TABLE = "mined_game";
+	// Conditional moves queued by the user ("if they play X, I play Y")
+	public static final String PREMOVE_TABLE = "premove";
+	// Moves played from positions of the user's finished games (cf. OpeningExplorer)
+	public static final String EXPLORER_TABLE = "explorer";
+	// Games already added to the explorer table
+	public static final String EXPLORED_GAME_TABLE = "explored_game";
+	// Every position of every game, by hash (cf. ChessDataBaseAdapter.findPosition())
+	public static final String POSITION_INDEX_TABLE = "position_index";
+	public static final String POSITION_INDEX_HASH_INDEX = "position_index_hash_index";
+	// One row per possible opponent with the active game, if any, kept up to
+	// date by triggers (cf. ChessDBHelper). Replaces the opponent views in version 11
+	public static final String OPPONENT_SUMMARY_TABLE = "opponent_summary";
+	public static final String OPPONENT_SUMMARY_NAME_INDEX = "opponent_summary_name_index";
+	public static final String OPPONENT_PLAYER_INSERT_TRIGGER = "opponent_player_insert_trigger";
+	public static final String OPPONENT_PLAYER_UPDATE_TRIGGER = "opponent_player_update_trigger";
+	public static final String OPPONENT_PLAYER_DELETE_TRIGGER = "opponent_player_delete_trigger";
+	public static final String OPPONENT_SELF_INSERT_TRIGGER = "opponent_self_insert_trigger";
+	public static final String OPPONENT_SELF_DELETE_TRIGGER = "opponent_self_delete_trigger";
+	public static final String OPPONENT_GAME_INSERT_TRIGGER = "opponent_game_insert_trigger";
+	public static final String OPPONENT_GAME_UPDATE_TRIGGER = "opponent_game_update_trigger";
 	// public static final String CHALLENGE_TABLE = "challenge";
 	
 	// SQLite views
 	public static final String UNCONFIRMED_GAME_VIEW = "unconfirmed_game_view";
 	public static final String UNFINISHED_GAME_VIEW = "unfinished_game_view";
+	// The views below were dropped in version 11 (cf. OPPONENT_SUMMARY_TABLE)
 	public static final String ACTIVE_GAME_OPP_ID_WITH_SELF_VIEW = "active_game_opp_self_view";
 	// List of id's for opponents that have an unfinished game in the db
 	public static final String ACTIVE_OPPONENT_ID_VIEW = "active_opp_id_view";
@@ -45,6 +79,17 @@ public interface Constants {
 	public static final String WHITE_COL = "white";
 	public static final String BLACK_COL = "black";
 	public static final String RESULT_COL = "result";
+	// ECO code of the opening, null until classified (cf. EcoClassifier)
+	public static final String ECO_COL = "eco";
+	public static final String GAME_ECO_INDEX = "game_eco_index";
+	// Number of moves made and the last one (packed, cf. Move.pack()),
+	// kept up to date by MOVE_INSERT_TRIGGER
+	public static final String PLY_COUNT_COL = "ply_count";
+	public static final String LAST_MOVE_COL = "last_move";
+	public static final String MOVE_INSERT_TRIGGER = "move_insert_trigger";
+	// Moves of the game as one BLOB (cf. Move.write()), used instead of
+	// the move table if ChessDBHelper.PACKED_MOVES. Added in version 10
+	public static final String MOVES_COL = "moves";
 	
 	// For challenge data
 	public static final String CHALLENGE_ID_COL = "challenge_id";
@@ -69,11 +114,38 @@ public interface Constants {
 	public static final String TO_SQUARE_COL = "to_square";
 	public static final String PIECE_COL = "piece";
 	
+	// For analysis table
+	// Primary key is GAME_ID_COL together with MOVE_NUM_COL
+	public static final String SCORE_COL = "score";
+	public static final String LOSS_COL = "loss";
+	public static final String LINES_COL = "lines";
+	
+	// For puzzle table (also uses GAME_ID_COL, MOVE_NUM_COL and LOSS_COL)
+	public static final String POSITION_HASH_COL = "position_hash";
+	public static final String BEST_MOVE_COL = "best_move";
+	
+	// For premove table: GAME_ID_COL, POSITION_HASH_COL (position after the
+	// opponent's move) and the reply in FROM_SQUARE_COL, TO_SQUARE_COL, PIECE_COL
+	
+	// For explorer table (also uses POSITION_HASH_COL)
+	// Primary key is POSITION_HASH_COL together with PACKED_MOVE_COL
+	public static final String PACKED_MOVE_COL = "packed_move";
+	public static final String GAMES_COL = "games";
+	public static final String WHITE_WINS_COL = "white_wins";
+	public static final String DRAWS_COL = "draws";
+	public static final String BLACK_WINS_COL = "black_wins";
+	
+	// For position index table (also uses POSITION_HASH_COL and GAME_ID_COL)
+	// Number of moves made to reach the position
+	public static final String PLY_COL = "ply";
+	
 	// For cursor used to construct ResumeRadioGroup
 	/**
 	 * Takes value 1 if self is to move, 0 if opponent is to move
 	 */
 	public static final String SELF_TO_MOVE_COL = "self_to_move";
+	// For OPPONENT_SUMMARY_TABLE: time of the last write to the active game (seconds)
+	public static final String LAST_ACTIVITY_COL = "last_activity";
 	
 	// For results in ChooseAction
 	public static final int CHOOSE_ACTION_ACTIVITY = 0;
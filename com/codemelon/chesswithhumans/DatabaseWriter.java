@@ -0,0 +1,328 @@
+/**
+ * @file
+ * Copyright (c) 2011 Marshall Farrier
+ */
+package com.codemelon.chesswithhumans;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import android.content.Context;
+import android.database.sqlite.SQLiteException;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+/**
+ * Thread doing the app's writes to the local database, so that the
+ * UI thread never waits for SQLite. Writes are queued as commands
+ * (cf. the subclasses of Command) and executed in the order submitted.
+ * Whatever has queued up by the time the thread gets to it, up to
+ * MAX_BATCH commands, is executed in one transaction, so a burst of
+ * writes, e.g. after synchronizing with the server, costs one commit.
+ * A command that fails may have doomed the whole transaction (e.g. by
+ * failing inside a nested one), so the batch is then rolled back and
+ * executed again without it: a result is only reported once committed.
+ *
+ * A command is its own future: get() waits for it to be committed.
+ * An optional Callback is called on the UI thread afterwards.
+ */
+public class DatabaseWriter implements Runnable {
+	private static final String TAG = "cwfDatabaseWriter";
+	private static final int MAX_BATCH = 64;
+
+	private static DatabaseWriter instance;
+
+	private final Context context;
+	private final LinkedBlockingQueue<Command<?>> queue = new LinkedBlockingQueue<Command<?>>();
+	private final Handler uiHandler = new Handler(Looper.getMainLooper());
+
+	/**
+	 * Called on the UI thread once the command is committed
+	 */
+	public interface Callback<T> {
+		/**
+		 * @param result Result of the command, null if it failed
+		 */
+		void done(T result);
+	}
+
+	/**
+	 * A write to be executed by the writer thread
+	 */
+	public static abstract class Command<T> {
+		private Callback<T> callback;
+		private T result;
+		private boolean done;
+
+		/**
+		 * Executed on the writer thread inside a transaction
+		 * @param db Open adapter
+		 * @return
+		 */
+		protected abstract T execute(ChessDataBaseAdapter db);
+
+		/**
+		 * @param c Called on the UI thread when the command is done
+		 * @return this
+		 */
+		public Command<T> setCallback(Callback<T> c) {
+			callback = c;
+			return this;
+		}
+
+		public synchronized boolean isDone() {
+			return done;
+		}
+
+		/**
+		 * Waits until the command is committed. Never call on the UI thread.
+		 * @return Result of the command, null if it failed
+		 * @throws InterruptedException
+		 */
+		public synchronized T get() throws InterruptedException {
+			while (!done) {
+				wait();
+			}
+			return result;
+		}
+
+		private synchronized void complete(T r) {
+			result = r;
+			done = true;
+			notifyAll();
+		}
+	}
+
+	public static class InsertMove extends Command<Long> {
+		private final int gameId, moveNum, from, to, piece;
+		private final long positionHash;
+
+		/**
+		 * @param positionHash Hash of the position after the move, 0 if unknown
+		 * (cf. ChessDataBaseAdapter.move())
+		 */
+		public InsertMove(int gameId, int moveNum, int from, int to, int piece, long positionHash) {
+			this.gameId = gameId;
+			this.moveNum = moveNum;
+			this.from = from;
+			this.to = to;
+			this.piece = piece;
+			this.positionHash = positionHash;
+		}
+
+		@Override
+		protected Long execute(ChessDataBaseAdapter db) {
+			return db.move(gameId, moveNum, from, to, piece, positionHash);
+		}
+	}
+
+	public static class SetResult extends Command<Integer> {
+		private final int gameId, gameResult;
+
+		public SetResult(int gameId, int gameResult) {
+			this.gameId = gameId;
+			this.gameResult = gameResult;
+		}
+
+		@Override
+		protected Integer execute(ChessDataBaseAdapter db) {
+			return db.setGameResult(gameId, gameResult);
+		}
+	}
+
+	public static class UpsertPlayer extends Command<Boolean> {
+		private final int playerId;
+		private final String handle;
+
+		public UpsertPlayer(int playerId, String handle) {
+			this.playerId = playerId;
+			this.handle = handle;
+		}
+
+		@Override
+		protected Boolean execute(ChessDataBaseAdapter db) {
+			return db.upsertPlayer(playerId, handle);
+		}
+	}
+
+	public static class NewGame extends Command<Long> {
+		private final int gameId, white, black;
+
+		public NewGame(int gameId, int white, int black) {
+			this.gameId = gameId;
+			this.white = white;
+			this.black = black;
+		}
+
+		@Override
+		protected Long execute(ChessDataBaseAdapter db) {
+			return db.newGame(gameId, white, black);
+		}
+	}
+
+	/**
+	 * Conditional move (cf. ChessDataBaseAdapter.addPremove())
+	 */
+	public static class AddPremove extends Command<Long> {
+		private final int gameId, from, to, piece;
+		private final long positionHash;
+
+		public AddPremove(int gameId, long positionHash, int from, int to, int piece) {
+			this.gameId = gameId;
+			this.positionHash = positionHash;
+			this.from = from;
+			this.to = to;
+			this.piece = piece;
+		}
+
+		@Override
+		protected Long execute(ChessDataBaseAdapter db) {
+			return db.addPremove(gameId, positionHash, from, to, piece);
+		}
+	}
+
+	/**
+	 * Moves and results from UPDATE_MOVES_AND_RESULTS_SCRIPT,
+	 * followed by the conditional moves they trigger.
+	 * The result is the premove string to send (cf. ChessDataBaseAdapter.playPremoves()).
+	 */
+	public static class ServerUpdate extends Command<String> {
+		private final LinkedList<String> serverMoves, serverResults;
+
+		public ServerUpdate(LinkedList<String> serverMoves, LinkedList<String> serverResults) {
+			this.serverMoves = serverMoves;
+			this.serverResults = serverResults;
+		}
+
+		@Override
+		protected String execute(ChessDataBaseAdapter db) {
+			return db.playPremoves(db.ingestFromServer(serverMoves, serverResults));
+		}
+	}
+
+	/**
+	 * Does nothing, only used to wait for the commands queued before it
+	 */
+	private static class Barrier extends Command<Boolean> {
+		@Override
+		protected Boolean execute(ChessDataBaseAdapter db) {
+			return Boolean.TRUE;
+		}
+	}
+
+	private DatabaseWriter(Context ctx) {
+		context = ctx.getApplicationContext();
+	}
+
+	/**
+	 * Queues the command, starting the writer thread on first use
+	 * @param ctx
+	 * @param command
+	 * @return command, to wait for or ignore
+	 */
+	public static <T> Command<T> submit(Context ctx, Command<T> command) {
+		getInstance(ctx).queue.add(command);
+		return command;
+	}
+
+	/**
+	 * Waits until all commands submitted so far are committed,
+	 * e.g. before reading what they wrote. Never call on the UI thread.
+	 * @param ctx
+	 * @throws InterruptedException
+	 */
+	public static void flush(Context ctx) throws InterruptedException {
+		submit(ctx, new Barrier()).get();
+	}
+
+	private static synchronized DatabaseWriter getInstance(Context ctx) {
+		if (instance == null) {
+			instance = new DatabaseWriter(ctx);
+			Thread t = new Thread(instance, "database-writer");
+			t.setDaemon(true);
+			t.start();
+		}
+		return instance;
+	}
+
+	public void run() {
+		ArrayList<Command<?>> batch = new ArrayList<Command<?>>(MAX_BATCH);
+		ChessDataBaseAdapter db = new ChessDataBaseAdapter(context);
+		while (true) {
+			try {
+				batch.add(queue.take());
+			} catch (InterruptedException e) {
+				Log.d(TAG, "interrupted");
+				return;
+			}
+			queue.drainTo(batch, MAX_BATCH - 1);
+			Object[] results = commit(batch, db);
+			if (batch.size() > 1) Log.d(TAG, batch.size() + " commands in one transaction");
+			for (int i = 0; i < batch.size(); ++i) {
+				finish(batch.get(i), results[i]);
+			}
+			batch.clear();
+		}
+	}
+
+	/**
+	 * Executes the batch in one transaction, dropping failed commands
+	 * and starting over until all of the others succeed
+	 * @return Result of each command, null if it failed or
+	 * the transaction could not be committed
+	 */
+	private static Object[] commit(ArrayList<Command<?>> batch, ChessDataBaseAdapter db) {
+		Object[] results = new Object[batch.size()];
+		boolean[] failed = new boolean[batch.size()];
+		boolean retry = true;
+		try {
+			db.open();
+			try {
+				while (retry) {
+					retry = false;
+					db.beginTransaction();
+					try {
+						for (int i = 0; i < batch.size() && !retry; ++i) {
+							if (failed[i]) continue;
+							try {
+								results[i] = batch.get(i).execute(db);
+							} catch (RuntimeException e) {
+								// E.g. a malformed server line or a constraint violation
+								Log.e(TAG, batch.get(i).getClass().getSimpleName() + " failed: " + e);
+								failed[i] = true;
+								retry = true;
+							}
+						}
+						if (!retry) db.setTransactionSuccessful();
+					} finally {
+						db.endTransaction();
+					}
+				}
+			} finally {
+				db.close();
+			}
+		} catch (SQLiteException e) {
+			Log.e(TAG, "batch of " + batch.size() + " not committed: " + e.getMessage());
+			retry = true;
+		}
+		for (int i = 0; i < results.length; ++i) {
+			if (failed[i] || retry) results[i] = null;
+		}
+		return results;
+	}
+
+	@SuppressWarnings("unchecked")
+	private <T> void finish(Command<T> c, Object r) {
+		final T result = (T) r;
+		c.complete(result);
+		final Callback<T> callback = c.callback;
+		if (callback == null) return;
+		uiHandler.post(new Runnable() {
+			public void run() {
+				callback.done(result);
+			}
+		});
+	}
+}
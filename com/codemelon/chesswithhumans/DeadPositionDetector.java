@@ -0,0 +1,199 @@
+/**
+ * @file
+ * Copyright (c) 2011 Marshall Farrier
+ */
+package com.codemelon.chesswithhumans;
+
+import static com.codemelon.chesswithhumans.Position.*;
+
+import android.util.Log;
+
+/**
+ * Proves dead positions which checkmateImpossible() doesn't recognize,
+ * i.e., blockades in which neither side can ever mate.
+ *
+ * mayBeDead() is a cheap fortress test: no queens, rooks or knights,
+ * and every pawn blocked by an opposing pawn. For such positions isDead()
+ * enumerates all positions reachable by legal moves (depth first, with
+ * a table of visited positions). The position is dead if no reachable
+ * position is checkmate and no capture or pawn move is ever possible.
+ * As soon as a capture or pawn move turns up the structure may break,
+ * so the proof fails. It also fails once MAX_STATES positions
+ * have been visited or MAX_MILLIS have passed, so isDead() is strictly
+ * bounded but should still not be called from the UI thread.
+ *
+ * Proven positions are remembered (by hash) and reported as
+ * DRAW_BY_NO_MORE_CHECKMATE by Position.drawStatus().
+ */
+public class DeadPositionDetector {
+	private static final String TAG = "cwfDeadPositionDetector";
+	private static final int MAX_STATES = 50000;
+	private static final long MAX_MILLIS = 250;
+	// Size of the table of visited positions, must be a power of 2
+	// well above MAX_STATES
+	private static final int TABLE_SIZE = 1 << 17;
+	private static final int MAX_MOVES = 256;
+	private static final int PROVEN_SIZE = 16;
+
+	// Recently proven dead positions
+	private static final long[] proven = new long[PROVEN_SIZE];
+	private static int provenNext = 0;
+
+	private Position pos;
+	private long[] visited;
+	private int states;
+	private long deadline;
+	// Legal moves of all positions on the current path
+	private int[] moves;
+	private int top;
+	// Per position on the path: next and end index in moves
+	private int[] next;
+	private int[] end;
+	private int depth;
+
+	/**
+	 * Cheap test whether isDead() could succeed
+	 * @param p
+	 * @return false if p certainly isn't a dead blockade
+	 */
+	public static boolean mayBeDead(Position p) {
+		int piece, type, front;
+		boolean pawnFound = false;
+		for (int i = 0; i < SQUARES; ++i) {
+			piece = p.getPiece(i);
+			if (piece == NONE) continue;
+			type = piece % PIECES;
+			if (type == QUEEN || type == ROOK || type == KNIGHT) return false;
+			if (type == PAWN) {
+				pawnFound = true;
+				front = piece / PIECES == WHITE ? i + BOARD_SIZE : i - BOARD_SIZE;
+				if (p.getPiece(front) != (1 - piece / PIECES) * PIECES + PAWN) return false;
+			}
+		}
+		// Without pawns checkmateImpossible() covers the dead cases
+		return pawnFound;
+	}
+
+	/**
+	 * @param hash
+	 * @return true if the position with the given hash was proven dead
+	 */
+	public static synchronized boolean isProvenDead(long hash) {
+		for (int i = 0; i < PROVEN_SIZE; ++i) {
+			if (proven[i] == hash && hash != 0) return true;
+		}
+		return false;
+	}
+
+	private static synchronized void addProven(long hash) {
+		proven[provenNext] = hash;
+		provenNext = (provenNext + 1) % PROVEN_SIZE;
+	}
+
+	/**
+	 * Tries to prove that no sequence of legal moves leads to mate.
+	 * @param p Not changed
+	 * @return true if proven, false if not dead or the budget ran out
+	 */
+	public boolean isDead(Position p) {
+		if (!mayBeDead(p)) return false;
+		if (isProvenDead(p.hash())) return true;
+		long start = System.currentTimeMillis();
+		pos = new Position(p);
+		visited = new long[TABLE_SIZE];
+		states = 0;
+		deadline = start + MAX_MILLIS;
+		moves = new int[4 * MAX_MOVES];
+		top = 0;
+		next = new int[64];
+		end = new int[64];
+		depth = 0;
+		boolean dead = prove();
+		Log.d(TAG, (dead ? "dead" : "not proven") + " after " + states + " positions, "
+				+ (System.currentTimeMillis() - start) + " ms");
+		pos = null;
+		visited = null;
+		moves = null;
+		if (dead) addProven(p.hash());
+		return dead;
+	}
+
+	private boolean prove() {
+		if (enter() < 0) return false;
+		int m, entered;
+		while (depth > 0) {
+			if (next[depth - 1] == end[depth - 1]) {
+				// All successors done
+				--depth;
+				top = depth > 0 ? end[depth - 1] : 0;
+				if (depth > 0) pos.unmove();
+				continue;
+			}
+			m = moves[next[depth - 1]++];
+			pos.move(Move.packedFrom(m), Move.packedTo(m), Move.packedPiece(m));
+			entered = enter();
+			if (entered < 0) return false;
+			if (entered == 0) pos.unmove();
+		}
+		return true;
+	}
+
+	/**
+	 * Visits pos
+	 * @return -1 if the proof fails, 0 if pos needs no further search,
+	 * 1 if its legal moves were pushed
+	 */
+	private int enter() {
+		if (++states > MAX_STATES || System.currentTimeMillis() > deadline) return -1;
+		// Without rooks the castling flags only change when a king
+		// passes a corner and are meaningless
+		long key = pos.hash() ^ Zobrist.CASTLING[pos.castlingFlags()];
+		int slot = (int) key & (TABLE_SIZE - 1);
+		while (visited[slot] != 0) {
+			if (visited[slot] == key) return 0;
+			slot = (slot + 1) & (TABLE_SIZE - 1);
+		}
+		visited[slot] = key;
+		if (top + MAX_MOVES > moves.length) {
+			int[] tmp = new int[2 * moves.length];
+			System.arraycopy(moves, 0, tmp, 0, top);
+			moves = tmp;
+		}
+		if (depth == next.length) {
+			int[] tmp = new int[2 * depth];
+			System.arraycopy(next, 0, tmp, 0, depth);
+			next = tmp;
+			tmp = new int[2 * depth];
+			System.arraycopy(end, 0, tmp, 0, depth);
+			end = tmp;
+		}
+		int n = pos.generateMoves(moves, top, false);
+		int legal = top;
+		int m, from, to;
+		for (int i = top; i < n; ++i) {
+			m = moves[i];
+			from = Move.packedFrom(m);
+			to = Move.packedTo(m);
+			if (pos.getPiece(from) % PIECES == PAWN || pos.isCapture(from, to)) {
+				pos.move(from, to, Move.packedPiece(m));
+				boolean illegal = pos.leftKingInCheck();
+				pos.unmove();
+				// The blockade can break
+				if (!illegal) return -1;
+				continue;
+			}
+			pos.move(from, to, Move.packedPiece(m));
+			if (!pos.leftKingInCheck()) moves[legal++] = m;
+			pos.unmove();
+		}
+		if (legal == top) {
+			// Mate ends the proof, stalemate ends the line
+			return pos.isInCheck(pos.hasMove()) ? -1 : 0;
+		}
+		next[depth] = top;
+		end[depth] = legal;
+		top = legal;
+		++depth;
+		return 1;
+	}
+}
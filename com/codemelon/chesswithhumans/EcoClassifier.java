@@ -0,0 +1,148 @@
+/**
+ * @file
+ * Copyright (c) 2011 Marshall Farrier
+ */
+package com.codemelon.chesswithhumans;
+
+import static com.codemelon.chesswithhumans.Constants.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+
+import android.content.Context;
+import android.util.Log;
+
+/**
+ * Maps positions to ECO opening codes and names.
+ * The table is a sorted long[] of position hashes (cf. Position.hash())
+ * with a parallel short[] of indices into a pool of "code name" strings,
+ * e.g. "C50 Italian Game", so a lookup is a binary search.
+ * Matching positions rather than move sequences also classifies
+ * transpositions correctly.
+ *
+ * The table is read from ECO_FILE in the app's assets the first time
+ * it is needed (cf. EcoFile for the format, EcoGenerator). Without it,
+ * games are left unclassified rather than marked UNKNOWN.
+ * A game is classified by the deepest position of its first MAX_PLIES
+ * moves found in the table; the code is stored on the game row
+ * so that games can be listed by opening without replaying them.
+ */
+public class EcoClassifier {
+	private static final String TAG = "cwfEcoClassifier";
+	// Deeper positions are not looked up
+	public static final int MAX_PLIES = 30;
+	// Stored for games without a known opening
+	public static final String UNKNOWN = "";
+
+	private static EcoClassifier instance;
+
+	private final long[] keys;
+	private final short[] names;
+	private final String[] pool;
+
+	private EcoClassifier(long[] k, short[] n, String[] p) {
+		keys = k;
+		names = n;
+		pool = p;
+	}
+
+	/**
+	 * Loads the table on first use. Without a table asset
+	 * the classifier is empty (cf. hasTable()).
+	 * @param ctx
+	 * @return
+	 */
+	public static synchronized EcoClassifier getInstance(Context ctx) {
+		if (instance == null) {
+			try {
+				EcoFile table = EcoFile.read(ctx.getAssets().open(ECO_FILE));
+				instance = new EcoClassifier(table.keys, table.names, table.pool);
+				Log.d(TAG, "Loaded " + instance.keys.length + " positions");
+			}
+			catch (IOException e) {
+				Log.e(TAG, "Unable to load ECO table: " + e.getMessage());
+				instance = new EcoClassifier(new long[0], new short[0], new String[0]);
+			}
+		}
+		return instance;
+	}
+
+	/**
+	 * @return false if no table could be loaded, so nothing can be classified
+	 */
+	public boolean hasTable() {
+		return keys.length > 0;
+	}
+
+	/**
+	 * @param moveList
+	 * @return ECO code of the game's opening, UNKNOWN if none matches
+	 */
+	public String classify(ArrayList<Move> moveList) {
+		String entry = entry(moveList);
+		return entry == null ? UNKNOWN : code(entry);
+	}
+
+	/**
+	 * @param code
+	 * @return Name of the opening with the given code, null if unknown.
+	 * Several names share a code; this is the first.
+	 */
+	public String name(String code) {
+		for (String s : pool) {
+			if (code.equals(code(s))) return s.substring(s.indexOf(' ') + 1);
+		}
+		return null;
+	}
+
+	private String entry(ArrayList<Move> moveList) {
+		if (keys.length == 0) return null;
+		Position p = new Position();
+		String result = null;
+		int i = find(p.hash());
+		if (i >= 0) result = pool[names[i]];
+		int plies = Math.min(moveList.size(), MAX_PLIES);
+		Move m;
+		for (int ply = 0; ply < plies; ++ply) {
+			m = moveList.get(ply);
+			p.move(m.from(), m.to(), m.piece());
+			i = find(p.hash());
+			if (i >= 0) result = pool[names[i]];
+		}
+		return result;
+	}
+
+	private static String code(String entry) {
+		int space = entry.indexOf(' ');
+		return space < 0 ? entry : entry.substring(0, space);
+	}
+
+	private int find(long key) {
+		int lo = 0, hi = keys.length - 1, mid;
+		while (lo <= hi) {
+			mid = (lo + hi) >>> 1;
+			if (keys[mid] < key) lo = mid + 1;
+			else if (keys[mid] > key) hi = mid - 1;
+			else return mid;
+		}
+		return -1;
+	}
+
+	/**
+	 * Classifies all games that have MAX_PLIES moves or are over
+	 * and haven't been classified yet. Does nothing without a table,
+	 * so the games are classified once there is one. Database must be open.
+	 * @param db
+	 * @return Number of games classified
+	 */
+	public int classifyGames(ChessDataBaseAdapter db) {
+		if (!hasTable()) return 0;
+		LinkedList<Integer> games = db.getUnclassifiedGames(MAX_PLIES);
+		for (int gameId : games) {
+			db.setEco(gameId, classify(db.moveList(gameId)));
+		}
+		if (!games.isEmpty()) Log.d(TAG, games.size() + " games classified");
+		return games.size();
+	}
+}
@@ -0,0 +1,82 @@
+/**
+ * @file
+ * Copyright (c) 2011 Marshall Farrier
+ */
+package com.codemelon.chesswithhumans;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Contents of ECO_FILE, read by EcoClassifier on the device (from the
+ * app's assets) and written by EcoGenerator on the desktop, hence no
+ * Android dependencies.
+ * File layout (big-endian): pool size, pool strings (modified UTF-8),
+ * number of positions, then per position the hash and the pool index,
+ * sorted by hash.
+ */
+public class EcoFile {
+	// "code name" strings, e.g. "C50 Italian Game"
+	final String[] pool;
+	// Sorted position hashes
+	final long[] keys;
+	// Pool index for each hash
+	final short[] names;
+
+	EcoFile(String[] pool, long[] keys, short[] names) {
+		this.pool = pool;
+		this.keys = keys;
+		this.names = names;
+	}
+
+	/**
+	 * @param stream Closed when done
+	 */
+	static EcoFile read(InputStream stream) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(stream));
+		try {
+			String[] p = new String[in.readInt()];
+			for (int i = 0; i < p.length; ++i) {
+				p[i] = in.readUTF();
+			}
+			int count = in.readInt();
+			long[] k = new long[count];
+			short[] n = new short[count];
+			for (int i = 0; i < count; ++i) {
+				k[i] = in.readLong();
+				n[i] = in.readShort();
+				if (n[i] < 0 || n[i] >= p.length || (i > 0 && k[i] <= k[i - 1])) {
+					throw new IOException("corrupt ECO file");
+				}
+			}
+			return new EcoFile(p, k, n);
+		}
+		finally {
+			in.close();
+		}
+	}
+
+	void write(File f) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f)));
+		try {
+			out.writeInt(pool.length);
+			for (String s : pool) {
+				out.writeUTF(s);
+			}
+			out.writeInt(keys.length);
+			for (int i = 0; i < keys.length; ++i) {
+				out.writeLong(keys[i]);
+				out.writeShort(names[i]);
+			}
+		}
+		finally {
+			out.close();
+		}
+	}
+}
@@ -0,0 +1,114 @@
+/**
+ * @file
+ * Copyright (c) 2011 Marshall Farrier
+ */
+package com.codemelon.chesswithhumans;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Offline generator for the table used by EcoClassifier.
+ * Run on the desktop:
+ * java com.codemelon.chesswithhumans.EcoGenerator <input file> <output file>
+ * and ship the output in the app's assets as Constants.ECO_FILE.
+ *
+ * Each input line is code, name and moves separated by tabs, the moves
+ * in coordinate notation with an optional promotion letter, e.g.
+ * C50	Italian Game	e2e4 e7e5 g1f3 b8c6 f1c4
+ * Empty lines and lines starting with # are skipped. The position at the
+ * end of each line is entered; if several lines reach the same position,
+ * the first one wins, so list the more specific names last only if
+ * they reach new positions.
+ */
+public class EcoGenerator {
+	private static final String PROMOTION_LETTERS = "qrnb";
+
+	public static void main(String[] args) throws IOException {
+		if (args.length != 2) {
+			System.err.println("usage: EcoGenerator <input file> <output file>");
+			System.exit(1);
+		}
+		ArrayList<String> pool = new ArrayList<String>();
+		HashMap<String, Integer> poolIndex = new HashMap<String, Integer>();
+		HashMap<Long, Integer> positions = new HashMap<Long, Integer>();
+		BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(args[0]), "UTF-8"));
+		try {
+			String line;
+			String[] fields;
+			int lineNumber = 0;
+			while ((line = in.readLine()) != null) {
+				++lineNumber;
+				line = line.trim();
+				if (line.length() == 0 || line.startsWith("#")) continue;
+				fields = line.split("\t");
+				if (fields.length != 3) {
+					throw new IOException("line " + lineNumber + ": expected 3 fields");
+				}
+				String entry = fields[0] + " " + fields[1];
+				Integer index = poolIndex.get(entry);
+				if (index == null) {
+					index = pool.size();
+					if (index > Short.MAX_VALUE) throw new IOException("too many names");
+					pool.add(entry);
+					poolIndex.put(entry, index);
+				}
+				long key = play(fields[2], lineNumber);
+				if (!positions.containsKey(key)) positions.put(key, index);
+			}
+		}
+		finally {
+			in.close();
+		}
+		long[] keys = new long[positions.size()];
+		int i = 0;
+		for (long key : positions.keySet()) {
+			keys[i++] = key;
+		}
+		Arrays.sort(keys);
+		short[] names = new short[keys.length];
+		for (i = 0; i < keys.length; ++i) {
+			names[i] = (short) positions.get(keys[i]).intValue();
+		}
+		new EcoFile(pool.toArray(new String[pool.size()]), keys, names).write(new File(args[1]));
+		System.out.println(keys.length + " positions, " + pool.size() + " names");
+	}
+
+	/**
+	 * @return Hash of the position after the given moves
+	 */
+	private static long play(String moves, int lineNumber) throws IOException {
+		Position p = new Position();
+		int from, to, piece, promotion;
+		for (String m : moves.trim().split("\\s+")) {
+			if (m.length() < 4) throw new IOException("line " + lineNumber + ": bad move " + m);
+			from = square(m, 0);
+			to = square(m, 2);
+			if (from < 0 || to < 0 || !p.isMove(from, to)) {
+				throw new IOException("line " + lineNumber + ": illegal move " + m);
+			}
+			piece = p.getPiece(from);
+			if (m.length() > 4) {
+				promotion = PROMOTION_LETTERS.indexOf(m.charAt(4));
+				if (promotion < 0) throw new IOException("line " + lineNumber + ": bad promotion " + m);
+				// QUEEN, ROOK, KNIGHT, BISHOP are 0 to 3
+				piece = p.hasMove() * Position.PIECES + promotion;
+			}
+			p.move(from, to, piece);
+		}
+		return p.hash();
+	}
+
+	private static int square(String m, int offset) {
+		int col = m.charAt(offset) - 'a';
+		int row = m.charAt(offset + 1) - '1';
+		if (col < 0 || col > 7 || row < 0 || row > 7) return -1;
+		return row * Position.BOARD_SIZE + col;
+	}
+}
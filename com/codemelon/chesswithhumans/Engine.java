@@ -0,0 +1,60 @@
+/**
+ * @file
+ * Copyright (c) 2011 Marshall Farrier
+ */
+package com.codemelon.chesswithhumans;
+
+import java.io.File;
+
+import android.content.Context;
+
+/**
+ * Search state shared by the whole app: the transposition table, kept
+ * between searches and filled ahead of time by a Ponderer, and the
+ * endgame bitbases (cf. Bitbase), loaded in the background from the
+ * app's private files directory, where they are generated on first use.
+ * Every search (GameOver, BlunderMiner, Ponderer) gets its table here,
+ * so none runs without the bitbases being on their way.
+ */
+public class Engine {
+	public static final int DEFAULT_MAX_DEPTH = 32;
+
+	private static Engine instance;
+
+	private final TranspositionTable tt;
+
+	/**
+	 * The engine shared by the whole app
+	 * @param context
+	 * @return
+	 */
+	public static synchronized Engine getInstance(Context context) {
+		if (instance == null) {
+			instance = new Engine(context.getApplicationContext());
+		}
+		return instance;
+	}
+
+	private Engine(Context context) {
+		tt = new TranspositionTable();
+		loadBitbases(context.getFilesDir());
+	}
+
+	/**
+	 * Starts loading (or generating) the endgame bitbases
+	 * @param dir
+	 */
+	private static void loadBitbases(final File dir) {
+		Thread t = new Thread(new Runnable() {
+			public void run() {
+				Bitbase.load(dir);
+			}
+		}, "bitbases");
+		t.setPriority(Thread.MIN_PRIORITY);
+		t.start();
+	}
+
+	public TranspositionTable transpositionTable() {
+		return tt;
+	}
+}
@@ -0,0 +1,327 @@
+/**
+ * @file
+ * Copyright (c) 2011 Marshall Farrier
+ */
+package com.codemelon.chesswithhumans;
+
+/**
+ * Static evaluation of a Position.
+ * Scores are in centipawns from the point of view of the side to move.
+ *
+ * Material and piece-square values are maintained incrementally by
+ * Position (cf. Position.setSquare()), so evaluate() only adds the terms
+ * that depend on more than one piece: pawn structure and king safety.
+ * Middlegame and endgame scores are interpolated according to the
+ * material left on the board (phase).
+ *
+ * Evaluator objects hold scratch state and are not thread safe:
+ * use one per searching thread.
+ */
+public class Evaluator {
+	// Indexed by piece type (QUEEN, ROOK, KNIGHT, BISHOP, PAWN, KING)
+	private static final int[] MG_MATERIAL = {1025, 477, 337, 365, 82, 0};
+	private static final int[] EG_MATERIAL = {936, 512, 281, 297, 94, 0};
+	private static final int[] PHASE_WEIGHT = {4, 2, 1, 1, 0, 0};
+	public static final int TOTAL_PHASE = 24;
+
+	/*
+	 * Piece-square tables are written from white's point of view
+	 * with the 8th rank first, so square s of a white piece is
+	 * looked up at s ^ 56 and square s of a black piece at s.
+	 */
+	private static final int[] PAWN_MG = {
+		  0,   0,   0,   0,   0,   0,   0,   0,
+		 50,  50,  50,  50,  50,  50,  50,  50,
+		 10,  10,  20,  30,  30,  20,  10,  10,
+		  5,   5,  10,  25,  25,  10,   5,   5,
+		  0,   0,   0,  20,  20,   0,   0,   0,
+		  5,  -5, -10,   0,   0, -10,  -5,   5,
+		  5,  10,  10, -20, -20,  10,  10,   5,
+		  0,   0,   0,   0,   0,   0,   0,   0
+	};
+	private static final int[] PAWN_EG = {
+		  0,   0,   0,   0,   0,   0,   0,   0,
+		 80,  80,  80,  80,  80,  80,  80,  80,
+		 50,  50,  50,  50,  50,  50,  50,  50,
+		 30,  30,  30,  30,  30,  30,  30,  30,
+		 20,  20,  20,  20,  20,  20,  20,  20,
+		 10,  10,  10,  10,  10,  10,  10,  10,
+		  0,   0,   0,   0,   0,   0,   0,   0,
+		  0,   0,   0,   0,   0,   0,   0,   0
+	};
+	private static final int[] KNIGHT_PST = {
+		-50, -40, -30, -30, -30, -30, -40, -50,
+		-40, -20,   0,   0,   0,   0, -20, -40,
+		-30,   0,  10,  15,  15,  10,   0, -30,
+		-30,   5,  15,  20,  20,  15,   5, -30,
+		-30,   0,  15,  20,  20,  15,   0, -30,
+		-30,   5,  10,  15,  15,  10,   5, -30,
+		-40, -20,   0,   5,   5,   0, -20, -40,
+		-50, -40, -30, -30, -30, -30, -40, -50
+	};
+	private static final int[] BISHOP_PST = {
+		-20, -10, -10, -10, -10, -10, -10, -20,
+		-10,   0,   0,   0,   0,   0,   0, -10,
+		-10,   0,   5,  10,  10,   5,   0, -10,
+		-10,   5,   5,  10,  10,   5,   5, -10,
+		-10,   0,  10,  10,  10,  10,   0, -10,
+		-10,  10,  10,  10,  10,  10,  10, -10,
+		-10,   5,   0,   0,   0,   0,   5, -10,
+		-20, -10, -10, -10, -10, -10, -10, -20
+	};
+	private static final int[] ROOK_PST = {
+		  0,   0,   0,   0,   0,   0,   0,   0,
+		  5,  10,  10,  10,  10,  10,  10,   5,
+		 -5,   0,   0,   0,   0,   0,   0,  -5,
+		 -5,   0,   0,   0,   0,   0,   0,  -5,
+		 -5,   0,   0,   0,   0,   0,   0,  -5,
+		 -5,   0,   0,   0,   0,   0,   0,  -5,
+		 -5,   0,   0,   0,   0,   0,   0,  -5,
+		  0,   0,   0,   5,   5,   0,   0,   0
+	};
+	private static final int[] QUEEN_PST = {
+		-20, -10, -10,  -5,  -5, -10, -10, -20,
+		-10,   0,   0,   0,   0,   0,   0, -10,
+		-10,   0,   5,   5,   5,   5,   0, -10,
+		 -5,   0,   5,   5,   5,   5,   0,  -5,
+		  0,   0,   5,   5,   5,   5,   0,  -5,
+		-10,   5,   5,   5,   5,   5,   0, -10,
+		-10,   0,   5,   0,   0,   0,   0, -10,
+		-20, -10, -10,  -5,  -5, -10, -10, -20
+	};
+	private static final int[] KING_MG = {
+		-30, -40, -40, -50, -50, -40, -40, -30,
+		-30, -40, -40, -50, -50, -40, -40, -30,
+		-30, -40, -40, -50, -50, -40, -40, -30,
+		-30, -40, -40, -50, -50, -40, -40, -30,
+		-20, -30, -30, -40, -40, -30, -30, -20,
+		-10, -20, -20, -20, -20, -20, -20, -10,
+		 20,  20,   0,   0,   0,   0,  20,  20,
+		 20,  30,  10,   0,   0,  10,  30,  20
+	};
+	private static final int[] KING_EG = {
+		-50, -40, -30, -20, -20, -30, -40, -50,
+		-30, -20, -10,   0,   0, -10, -20, -30,
+		-30, -10,  20,  30,  30,  20, -10, -30,
+		-30, -10,  30,  40,  40,  30, -10, -30,
+		-30, -10,  30,  40,  40,  30, -10, -30,
+		-30, -10,  20,  30,  30,  20, -10, -30,
+		-30, -30,   0,   0,   0,   0, -30, -30,
+		-50, -30, -30, -30, -30, -30, -30, -50
+	};
+	// Indexed by piece type
+	private static final int[][] MG_PST = {QUEEN_PST, ROOK_PST, KNIGHT_PST, BISHOP_PST, PAWN_MG, KING_MG};
+	private static final int[][] EG_PST = {QUEEN_PST, ROOK_PST, KNIGHT_PST, BISHOP_PST, PAWN_EG, KING_EG};
+
+	// Pawn structure
+	private static final int DOUBLED_MG = -10;
+	private static final int DOUBLED_EG = -20;
+	private static final int ISOLATED_MG = -10;
+	private static final int ISOLATED_EG = -15;
+	// Indexed by rank relative to the pawn's color
+	private static final int[] PASSED_MG = {0, 5, 10, 15, 25, 40, 60, 0};
+	private static final int[] PASSED_EG = {0, 10, 20, 35, 60, 90, 130, 0};
+
+	// King safety (middlegame only)
+	private static final int OPEN_FILE_NEAR_KING = -25;
+	private static final int MISSING_SHIELD_PAWN = -15;
+	// Indexed by piece type of an enemy piece within 2 squares of the king
+	private static final int[] KING_ZONE_ATTACKER = {-25, -15, -10, -8, 0, 0};
+
+	static final long[] FILE_MASK = new long[Position.BOARD_SIZE];
+	static final long[] ADJACENT_FILES_MASK = new long[Position.BOARD_SIZE];
+	// Squares in front of a pawn of the given color on its own and adjacent files
+	static final long[][] PASSED_MASK = new long[2][Position.SQUARES];
+
+	static {
+		int file, rank, sq, r;
+		for (file = 0; file < Position.BOARD_SIZE; ++file) {
+			for (rank = 0; rank < Position.BOARD_SIZE; ++rank) {
+				FILE_MASK[file] |= 1L << (rank * Position.BOARD_SIZE + file);
+			}
+		}
+		for (file = 0; file < Position.BOARD_SIZE; ++file) {
+			if (file > 0) ADJACENT_FILES_MASK[file] |= FILE_MASK[file - 1];
+			if (file < Position.BOARD_SIZE - 1) ADJACENT_FILES_MASK[file] |= FILE_MASK[file + 1];
+		}
+		for (sq = 0; sq < Position.SQUARES; ++sq) {
+			file = sq % Position.BOARD_SIZE;
+			rank = sq / Position.BOARD_SIZE;
+			long span = FILE_MASK[file] | ADJACENT_FILES_MASK[file];
+			for (r = 0; r < Position.BOARD_SIZE; ++r) {
+				long rankMask = 0xffL << (r * Position.BOARD_SIZE);
+				if (r > rank) PASSED_MASK[Position.WHITE][sq] |= span & rankMask;
+				if (r < rank) PASSED_MASK[Position.BLACK][sq] |= span & rankMask;
+			}
+		}
+	}
+
+	private final PawnHashTable pawnTable;
+	// Results of the last call to pawnStructure()
+	private int pawnMg;
+	private int pawnEg;
+	private long whitePassed;
+	private long blackPassed;
+
+	public Evaluator() {
+		pawnTable = new PawnHashTable();
+	}
+
+	/**
+	 * Material and middlegame piece-square value of the given piece
+	 * on the given square, always positive for either color
+	 * @param piece
+	 * @param square
+	 * @return
+	 */
+	public static int mgValue(int piece, int square) {
+		int type = piece % Position.PIECES;
+		if (piece / Position.PIECES == Position.WHITE) square ^= 56;
+		return MG_MATERIAL[type] + MG_PST[type][square];
+	}
+
+	public static int egValue(int piece, int square) {
+		int type = piece % Position.PIECES;
+		if (piece / Position.PIECES == Position.WHITE) square ^= 56;
+		return EG_MATERIAL[type] + EG_PST[type][square];
+	}
+
+	public static int phaseWeight(int piece) {
+		return PHASE_WEIGHT[piece % Position.PIECES];
+	}
+
+	/**
+	 * Middlegame material value of a piece type, e.g. for move ordering
+	 * @param type
+	 * @return
+	 */
+	public static int pieceValue(int type) {
+		return MG_MATERIAL[type];
+	}
+
+	/**
+	 * Static evaluation in centipawns from the point of view
+	 * of the side to move
+	 * @param p
+	 * @return
+	 */
+	public int evaluate(Position p) {
+		int mg = p.mgScore();
+		int eg = p.egScore();
+		pawnStructure(p);
+		mg += pawnMg;
+		eg += pawnEg;
+		mg += kingSafety(p, Position.WHITE) - kingSafety(p, Position.BLACK);
+
+		int phase = p.phase();
+		if (phase > TOTAL_PHASE) phase = TOTAL_PHASE;	// Possible after promotions
+		int score = (mg * phase + eg * (TOTAL_PHASE - phase)) / TOTAL_PHASE;
+		return p.hasMove() == Position.WHITE ? score : -score;
+	}
+
+	/**
+	 * Passed pawns of the given color found by the last call to evaluate()
+	 * @param color
+	 * @return
+	 */
+	public long passedPawns(int color) {
+		return color == Position.WHITE ? whitePassed : blackPassed;
+	}
+	
+	public PawnHashTable pawnTable() {
+		return pawnTable;
+	}
+
+	/**
+	 * Sets pawnMg and pawnEg to doubled, isolated and passed pawn terms,
+	 * white minus black. Looks the pawn structure up in pawnTable first.
+	 * @param p
+	 */
+	protected void pawnStructure(Position p) {
+		long key = p.pawnHash();
+		int entry = pawnTable.probe(key);
+		if (entry >= 0) {
+			pawnMg = pawnTable.mgScore(entry);
+			pawnEg = pawnTable.egScore(entry);
+			whitePassed = pawnTable.passedPawns(entry, Position.WHITE);
+			blackPassed = pawnTable.passedPawns(entry, Position.BLACK);
+			return;
+		}
+		pawnMg = 0;
+		pawnEg = 0;
+		whitePassed = 0;
+		blackPassed = 0;
+		int color, sign, file, count, sq, rank;
+		long own, enemy, bits;
+		for (color = Position.WHITE; color <= Position.BLACK; ++color) {
+			sign = 1 - 2 * color;
+			own = p.pawns(color);
+			enemy = p.pawns(1 - color);
+			for (file = 0; file < Position.BOARD_SIZE; ++file) {
+				count = Long.bitCount(own & FILE_MASK[file]);
+				if (count == 0) continue;
+				if (count > 1) {
+					pawnMg += sign * DOUBLED_MG * (count - 1);
+					pawnEg += sign * DOUBLED_EG * (count - 1);
+				}
+				if ((own & ADJACENT_FILES_MASK[file]) == 0) {
+					pawnMg += sign * ISOLATED_MG * count;
+					pawnEg += sign * ISOLATED_EG * count;
+				}
+			}
+			bits = own;
+			while (bits != 0) {
+				sq = Long.numberOfTrailingZeros(bits);
+				bits &= bits - 1;
+				if ((enemy & PASSED_MASK[color][sq]) == 0) {
+					if (color == Position.WHITE) whitePassed |= 1L << sq;
+					else blackPassed |= 1L << sq;
+					rank = sq / Position.BOARD_SIZE;
+					if (color == Position.BLACK) rank = Position.BOARD_SIZE - 1 - rank;
+					pawnMg += sign * PASSED_MG[rank];
+					pawnEg += sign * PASSED_EG[rank];
+				}
+			}
+		}
+		pawnTable.store(key, pawnMg, pawnEg, whitePassed, blackPassed);
+	}
+
+	/**
+	 * Penalties for the king of the given color (always <= 0):
+	 * missing pawn shield, open files next to the king and enemy
+	 * pieces close to the king.
+	 * @param p
+	 * @param color
+	 * @return
+	 */
+	private static int kingSafety(Position p, int color) {
+		int ksq = p.kingSquare(color);
+		int kFile = ksq % Position.BOARD_SIZE;
+		int kRank = ksq / Position.BOARD_SIZE;
+		long own = p.pawns(color);
+		int result = 0;
+		int f, r, piece;
+		// Shield: own pawn on one of the 2 ranks in front of the king
+		long shieldRanks;
+		if (color == Position.WHITE) {
+			shieldRanks = kRank < 6 ? 0xffffL << ((kRank + 1) * Position.BOARD_SIZE) : 0;
+		}
+		else {
+			shieldRanks = kRank > 1 ? 0xffffL << ((kRank - 2) * Position.BOARD_SIZE) : 0;
+		}
+		for (f = Math.max(kFile - 1, 0); f <= Math.min(kFile + 1, Position.BOARD_SIZE - 1); ++f) {
+			if ((own & FILE_MASK[f]) == 0) result += OPEN_FILE_NEAR_KING;
+			else if ((own & FILE_MASK[f] & shieldRanks) == 0) result += MISSING_SHIELD_PAWN;
+		}
+		// Enemy pieces in the 5x5 zone around the king
+		for (r = Math.max(kRank - 2, 0); r <= Math.min(kRank + 2, Position.BOARD_SIZE - 1); ++r) {
+			for (f = Math.max(kFile - 2, 0); f <= Math.min(kFile + 2, Position.BOARD_SIZE - 1); ++f) {
+				piece = p.getPiece(r * Position.BOARD_SIZE + f);
+				if (piece != Position.NONE && piece / Position.PIECES != color) {
+					result += KING_ZONE_ATTACKER[piece % Position.PIECES];
+				}
+			}
+		}
+		return result;
+	}
+}
@@ -84,7 +84,7 @@ public class FindPlayer extends Activity {
 	 * Server sends back playerId if found, the string 'failure' on problems with query,
 	 * or the string 'empty' if the query was successful but no matching player was found.
 	 */
-	private void checkServer(String handle) {
+	private void checkServer(final String handle) {
 		String response = "";
 		try {
 			URL url = new URL(WEBSITE + DIRECTORY + FIND_PLAYER_SCRIPT);
@@ -132,14 +132,18 @@ public class FindPlayer extends Activity {
 		}
 		int playerId = Integer.parseInt(response);
 		handleText.setText("");
-		db.open();
-		if (db.addPlayer(playerId, handle)) {
-			showMessage("Player \"" + handle + "\" has been added to your player list.");
-		}
-		else {
-			showMessage("Player \"" + handle + "\" could not be added to local database.");
-			Log.e(TAG, "Error adding player " + handle + " to local database");
-		}
-		db.close();					
+		DatabaseWriter.Command<Boolean> addPlayer = new DatabaseWriter.UpsertPlayer(playerId, handle);
+		addPlayer.setCallback(new DatabaseWriter.Callback<Boolean>() {
+			public void done(Boolean added) {
+				if (added != null && added) {
+					showMessage("Player \"" + handle + "\" has been added to your player list.");
+				}
+				else {
+					showMessage("Player \"" + handle + "\" could not be added to local database.");
+					Log.e(TAG, "Error adding player " + handle + " to local database");
+				}
+			}
+		});
+		DatabaseWriter.submit(this, addPlayer);
 	}
 }
@@ -17,12 +17,14 @@ import android.app.AlertDialog;
 import android.app.ProgressDialog;
 import android.content.DialogInterface;
 import android.content.Intent;
-import android.database.sqlite.SQLiteConstraintException;
+import android.database.Cursor;
 import android.database.sqlite.SQLiteException;
 import android.os.AsyncTask;
 import android.os.Bundle;
 import android.util.Log;
 import android.view.Gravity;
+import android.view.Menu;
+import android.view.MenuItem;
 import android.widget.Toast;
 
 /**
@@ -33,6 +35,10 @@ import android.widget.Toast;
  */
 public abstract class Game extends Activity {
 	private static final String TAG = "Game";
+	// Moves shown by the opening explorer
+	private static final int EXPLORER_MOVES = 3;
+	// Options menu
+	private static final int MENU_PONDER = Menu.FIRST;
 	private int opponentId;
 	private int selfId;
 	private int gameId;
@@ -69,6 +75,45 @@ public abstract class Game extends Activity {
         }
     }
 	
+	@Override
+	protected void onResume() {
+		super.onResume();
+		startPondering();
+	}
+	
+	@Override
+	protected void onPause() {
+		super.onPause();
+		// Only ponder while the game is on screen
+		Ponderer.stop(gameId);
+	}
+	
+	@Override
+	public boolean onCreateOptionsMenu(Menu menu) {
+		super.onCreateOptionsMenu(menu);
+		menu.add(Menu.NONE, MENU_PONDER, Menu.NONE, "Think on opponent's time").setCheckable(true);
+		return true;
+	}
+	
+	@Override
+	public boolean onPrepareOptionsMenu(Menu menu) {
+		super.onPrepareOptionsMenu(menu);
+		menu.findItem(MENU_PONDER).setChecked(Ponderer.isEnabled(this));
+		return true;
+	}
+	
+	@Override
+	public boolean onOptionsItemSelected(MenuItem item) {
+		if (item.getItemId() == MENU_PONDER) {
+			boolean enabled = !item.isChecked();
+			item.setChecked(enabled);
+			Ponderer.setEnabled(this, enabled);
+			if (enabled) startPondering();
+			return true;
+		}
+		return super.onOptionsItemSelected(item);
+	}
+	
 	@Override
 	protected void onActivityResult(int requestCode, int resultCode, Intent data) {
 		Intent i;
@@ -80,21 +125,20 @@ public abstract class Game extends Activity {
 				break;
 			case RESULT_RESIGN:
 				i = new Intent(this, GameOver.class);
+				i.putExtra(GAME_ID, gameId);
 				i.putExtra(SELF_RESULT, YOU_RESIGNED);
-				db.open();
 				if (white) {
 					provisionalResultCode = WHITE_RESIGNED;
 					i.putExtra(COLOR_RESULT, BLACK_WINS);
-					Log.d(TAG, db.setGameResult(gameId, provisionalResultCode) + " row updated to conclude game");
+					saveResult(provisionalResultCode);
 					sendResult(provisionalResultCode);
 				}
 				else {
 					provisionalResultCode = BLACK_RESIGNED;
 					i.putExtra(COLOR_RESULT, WHITE_WINS);
-					Log.d(TAG, db.setGameResult(gameId, provisionalResultCode) + " row updated to conclude game");
+					saveResult(provisionalResultCode);
 					sendResult(provisionalResultCode);
 				}
-				db.close();
 				startActivityForResult(i, GAME_OVER_ACTIVITY);
 				break;
 			case RESULT_CALL_DRAW:
@@ -135,21 +179,91 @@ public abstract class Game extends Activity {
 		return gameId;
 	}
 	
-	// Enter move into local database
-	public long move(int from, int to, int piece) {
-		long rowId = -1;
-		db.open();
+	// Enter move into local database (written by DatabaseWriter)
+	public void move(int from, int to, int piece) {
+		DatabaseWriter.submit(this, new DatabaseWriter.InsertMove(gameId, moveNumber, from, to, piece, 
+				boardView.position().hash()));
+		++moveNumber;
+	}
+	
+	/**
+	 * Stores the result of the game without waiting for the database
+	 * @param provisionalResultCode
+	 */
+	private void saveResult(int provisionalResultCode) {
+		DatabaseWriter.submit(this, new DatabaseWriter.SetResult(gameId, provisionalResultCode));
+	}
+	
+	/**
+	 * Queues a reply to be played as soon as the opponent's move
+	 * leading to the given position arrives (cf. ChessDataBaseAdapter.playPremoves())
+	 * @param positionHash
+	 * @param from
+	 * @param to
+	 * @param piece
+	 */
+	public void addPremove(long positionHash, int from, int to, int piece) {
+		DatabaseWriter.Command<Long> premove = new DatabaseWriter.AddPremove(gameId, positionHash, from, to, piece);
+		premove.setCallback(new DatabaseWriter.Callback<Long>() {
+			public void done(Long rowId) {
+				if (rowId != null && rowId != -1) {
+					showMessage("Conditional move saved");
+				}
+				else {
+					Log.v(TAG, "error inserting premove");
+					showMessage("Conditional move could not be saved");
+				}
+			}
+		});
+		DatabaseWriter.submit(this, premove);
+	}
+	
+	/**
+	 * Reads the database, so call in the background (cf. BoardView.ExplorerTask)
+	 * @param positionHash
+	 * @return Moves played from the given position in the user's
+	 * finished games (cf. OpeningExplorer.summary()) and the number
+	 * of other games in which it occurred
+	 */
+	public String explorerSummary(long positionHash) {
+		String result = "";
+		// Own adapter: db belongs to the UI thread
+		ChessDataBaseAdapter explorerDb = new ChessDataBaseAdapter(this);
 		try {
-			rowId = db.move(gameId, moveNumber, from, to, piece);
-		} catch (SQLiteConstraintException e) {
-			Log.v(TAG, "error inserting new game row: " + e.getMessage());
+			explorerDb.open();
+			try {
+				result = OpeningExplorer.summary(explorerDb, positionHash, EXPLORER_MOVES);
+				int others = otherGames(explorerDb, positionHash);
+				if (others > 0) {
+					result += (result.length() > 0 ? "  " : "") + "seen in " + others +
+						(others == 1 ? " other game" : " other games");
+				}
+			} finally {
+				explorerDb.close();
+			}
 		} catch (SQLiteException e) {
-			Log.v(TAG, "error inserting new game row: " + e.getMessage());
-		} finally {		
-			db.close();
+			Log.v(TAG, "error reading explorer: " + e.getMessage());
 		}
-		++moveNumber;
-		return rowId;
+		return result;
+	}
+	
+	/**
+	 * @return Number of games other than this one in which the position occurred
+	 */
+	private int otherGames(ChessDataBaseAdapter explorerDb, long positionHash) {
+		int result = 0;
+		int lastGame = -1;
+		Cursor c = explorerDb.findPosition(positionHash);
+		try {
+			// Ordered by game, a game appearing once per repetition
+			while (c.moveToNext()) {
+				if (c.getInt(0) != lastGame && c.getInt(0) != gameId) ++result;
+				lastGame = c.getInt(0);
+			}
+		} finally {
+			c.close();
+		}
+		return result;
 	}
 	
 	public void sendMove(int from, int to, int piece, int result) {
@@ -158,9 +272,25 @@ public abstract class Game extends Activity {
 		String gameResult = gameId + "," + result;
 		String[] params = {move, gameResult};
 		new SendMoveTask().execute(params);
+		if (result == UNFINISHED_GAME) {
+			startPondering();
+		}
+		else {
+			Ponderer.stop(gameId);
+		}
+	}
+	
+	/**
+	 * Analyzes the opponent's likely replies in the background
+	 * while waiting for the opponent's move (cf. Ponderer)
+	 */
+	private void startPondering() {
+		if (boardView == null || boardView.myMove() || colorResult != UNFINISHED_GAME) return;
+		Ponderer.start(this, gameId, boardView.position());
 	}
 	
 	private void sendResult(int gameResult) {
+		Ponderer.stop(gameId);
 		String message = gameId + "," + gameResult + "," + RESULT_SIGNAL;
 		String[] params = {message};
 		new SendMoveTask().execute(params);
@@ -184,15 +314,11 @@ public abstract class Game extends Activity {
 		if (colorResultCode == BLACK_WINS) {
 			provisionalResultCode = BLACK_WINS_BY_CHECKMATE;
 		}
-		db.open();
-		try {
-			db.setGameResult(gameId, provisionalResultCode);
-		} finally {
-			db.close();
-		}
+		saveResult(provisionalResultCode);
 		sendMove(from, to, piece, provisionalResultCode);
 		setResultsOnCheckmate(colorResultCode);
 		Intent i = new Intent(this, GameOver.class);
+		i.putExtra(GAME_ID, gameId);
 		i.putExtra(COLOR_RESULT, colorResult);
 		i.putExtra(SELF_RESULT, selfResult);
 		startActivityForResult(i, GAME_OVER_ACTIVITY);
@@ -202,14 +328,10 @@ public abstract class Game extends Activity {
 		colorResult = DRAW;
 		selfResult = STALEMATE;
 		int provisionalResultCode = DRAW_BY_STALEMATE;
-		db.open();
-		try {
-			db.setGameResult(gameId, provisionalResultCode);
-		} finally {
-			db.close();
-		}
+		saveResult(provisionalResultCode);
 		sendMove(from, to, piece, provisionalResultCode);
 		Intent i = new Intent(this, GameOver.class);
+		i.putExtra(GAME_ID, gameId);
 		i.putExtra(COLOR_RESULT, colorResult);
 		i.putExtra(SELF_RESULT, selfResult);
 		startActivityForResult(i, GAME_OVER_ACTIVITY);
@@ -242,6 +364,7 @@ public abstract class Game extends Activity {
 	 */
 	private void gameOver() {
 		Intent i = new Intent(this, GameOver.class);
+		i.putExtra(GAME_ID, gameId);
 		i.putExtra(SELF_RESULT, selfResult);
 		i.putExtra(COLOR_RESULT, colorResult);
 		startActivityForResult(i, GAME_OVER_ACTIVITY);
@@ -280,9 +403,7 @@ public abstract class Game extends Activity {
 			provisionalResultCode = DRAW_BY_FIFTY_FOR_DB;
 			break;
 		}
-		db.open();
-		db.setGameResult(gameId, provisionalResultCode);
-		db.close();
+		saveResult(provisionalResultCode);
 		sendResult(provisionalResultCode);
 		Log.d(TAG, "database updated to finish game");
 		gameOver();
@@ -295,9 +416,7 @@ public abstract class Game extends Activity {
 		if (drawStatus != DRAW_BY_NO_MORE_CHECKMATE) {
 			provisionalResultCode = drawStatus;
 		}
-		db.open();
-		db.setGameResult(gameId, provisionalResultCode);
-		db.close();
+		saveResult(provisionalResultCode);
 		Log.d(TAG, "database updated to finish game");
 		sendMove(from, to, piece, provisionalResultCode);
 		gameOver();
@@ -0,0 +1,219 @@
+/**
+ * @file
+ * Copyright (c) 2011 Marshall Farrier
+ */
+package com.codemelon.chesswithhumans;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import android.util.Log;
+
+/**
+ * Engine review of a finished game.
+ * Every position of the game gets a bounded multi-PV search, the positions
+ * being searched in parallel on a thread pool with one thread per core.
+ * For each ply the analysis holds the evaluation before the move, the best
+ * lines and the loss of the move actually played, i.e., how much worse the
+ * played move is than the best move (in centipawns, never negative).
+ * Scores are from the point of view of the player to move at that ply.
+ */
+public class GameAnalysis {
+	private static final String TAG = "cwfGameAnalysis";
+	public static final int LINES = 3;
+	private static final int MAX_DEPTH = 12;
+	private static final long MILLIS_PER_POSITION = 150;
+	// Mate scores are capped at this for computing losses
+	private static final int MAX_EVAL = 2000;
+
+	private final int plies;
+	private final int[] scores;
+	private final int[] losses;
+	private final int[][] lineScores;
+	private final int[][][] lines;
+
+	private volatile boolean stopped;
+	private final List<Search> running = new LinkedList<Search>();
+
+	/**
+	 * Creates an empty analysis to be filled by run() or setPly()
+	 * @param plies Number of moves in the game
+	 */
+	public GameAnalysis(int plies) {
+		this.plies = plies;
+		scores = new int[plies];
+		losses = new int[plies];
+		lineScores = new int[plies][];
+		lines = new int[plies][][];
+	}
+
+	/**
+	 * Analyzes the game. Blocks until done, so don't call from the UI thread.
+	 * @param moveList
+	 * @param tt Table to start from, e.g. Engine's, filled while pondering the game;
+	 * shared by all threads (cf. TranspositionTable)
+	 * @return false if stopped before completion
+	 */
+	public boolean run(ArrayList<Move> moveList, final TranspositionTable tt) {
+		int threads = Runtime.getRuntime().availableProcessors();
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		final int[] evals = new int[plies + 1];
+		List<Future<?>> futures = new ArrayList<Future<?>>(plies + 1);
+		long start = System.currentTimeMillis();
+		try {
+			for (int i = 0; i <= plies; ++i) {
+				final int ply = i;
+				final Position p = new Position(new ArrayList<Move>(moveList.subList(0, i)));
+				futures.add(pool.submit(new Runnable() {
+					public void run() {
+						analyzePosition(p, ply, tt, evals);
+					}
+				}));
+			}
+			for (Future<?> f : futures) {
+				f.get();
+			}
+		}
+		catch (InterruptedException e) {
+			stop();
+			return false;
+		}
+		catch (ExecutionException e) {
+			Log.e(TAG, "analysis failed: " + e.getCause());
+			stop();
+			return false;
+		}
+		finally {
+			pool.shutdownNow();
+		}
+		if (stopped) return false;
+		for (int i = 0; i < plies; ++i) {
+			scores[i] = evals[i];
+			// evals[i + 1] is from the opponent's point of view
+			losses[i] = Math.max(0, clamp(evals[i]) + clamp(evals[i + 1]));
+		}
+		Log.d(TAG, "analyzed " + plies + " plies in " + (System.currentTimeMillis() - start) + " ms");
+		return true;
+	}
+
+	/**
+	 * May be called from any thread
+	 */
+	public void stop() {
+		stopped = true;
+		synchronized (running) {
+			for (Search s : running) {
+				s.stop();
+			}
+		}
+	}
+
+	private void analyzePosition(Position p, int ply, TranspositionTable tt, int[] evals) {
+		if (stopped) return;
+		Search search = new Search(p, tt);
+		synchronized (running) {
+			running.add(search);
+		}
+		try {
+			int lineCount = ply < plies ? LINES : 1;
+			int n = search.multiPv(lineCount, MAX_DEPTH, MILLIS_PER_POSITION, 0);
+			if (n == 0 && p.legalMoveExists()) {
+				// Out of time before depth 1 was done: a depth 1 search always completes
+				if (stopped) return;
+				n = search.multiPv(lineCount, 1, 0, 0);
+				// Only stop() leaves the position unanalyzed; run() then fails
+				if (n == 0) return;
+			}
+			if (n == 0) {
+				// Game over: mate or stalemate
+				evals[ply] = p.isInCheck(p.hasMove()) ? -Search.MATE : 0;
+				if (ply < plies) {
+					lineScores[ply] = new int[0];
+					lines[ply] = new int[0][];
+				}
+				return;
+			}
+			evals[ply] = search.lineScore(0);
+			if (ply < plies) {
+				lineScores[ply] = new int[n];
+				lines[ply] = new int[n][];
+				for (int i = 0; i < n; ++i) {
+					lineScores[ply][i] = search.lineScore(i);
+					lines[ply][i] = search.line(i);
+				}
+			}
+		}
+		finally {
+			synchronized (running) {
+				running.remove(search);
+			}
+		}
+	}
+
+	private static int clamp(int score) {
+		return Math.max(-MAX_EVAL, Math.min(MAX_EVAL, score));
+	}
+
+	public int plies() { return plies; }
+	public int score(int ply) { return scores[ply]; }
+	public int loss(int ply) { return losses[ply]; }
+	/**
+	 * @param ply
+	 * @return Best line (packed moves) in the position before the given ply
+	 */
+	public int[] bestLine(int ply) {
+		return lines[ply].length > 0 ? lines[ply][0] : new int[0];
+	}
+	public int lineCount(int ply) { return lines[ply].length; }
+	public int lineScore(int ply, int i) { return lineScores[ply][i]; }
+	public int[] line(int ply, int i) { return lines[ply][i]; }
+
+	/**
+	 * Sets the data for one ply, e.g. when loading from the database
+	 * @param ply
+	 * @param score
+	 * @param loss
+	 * @param encodedLines As returned by encodeLines()
+	 */
+	public void setPly(int ply, int score, int loss, String encodedLines) {
+		scores[ply] = score;
+		losses[ply] = loss;
+		String[] parts = encodedLines.length() == 0 ? new String[0] : encodedLines.split(";");
+		lineScores[ply] = new int[parts.length];
+		lines[ply] = new int[parts.length][];
+		String[] fields, moves;
+		for (int i = 0; i < parts.length; ++i) {
+			fields = parts[i].split(":");
+			lineScores[ply][i] = Integer.parseInt(fields[0]);
+			moves = fields.length > 1 && fields[1].length() > 0 ? fields[1].split(",") : new String[0];
+			lines[ply][i] = new int[moves.length];
+			for (int j = 0; j < moves.length; ++j) {
+				lines[ply][i][j] = Integer.parseInt(moves[j]);
+			}
+		}
+	}
+
+	/**
+	 * Lines for one ply as stored in the database:
+	 * score:move,move,...;score:move,... with packed moves
+	 * @param ply
+	 * @return
+	 */
+	public String encodeLines(int ply) {
+		StringBuilder builder = new StringBuilder();
+		for (int i = 0; i < lines[ply].length; ++i) {
+			if (i > 0) builder.append(";");
+			builder.append(lineScores[ply][i]).append(":");
+			for (int j = 0; j < lines[ply][i].length; ++j) {
+				if (j > 0) builder.append(",");
+				builder.append(lines[ply][i][j]);
+			}
+		}
+		return builder.toString();
+	}
+}
@@ -8,17 +8,25 @@ import static com.codemelon.chesswithhumans.Constants.*;
 
 // import com.codemelon.chesswithfriends.R;
 
+import java.util.ArrayList;
+
 import android.app.Activity;
+import android.database.sqlite.SQLiteException;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.util.Log;
+import android.view.Gravity;
 import android.view.View;
 import android.view.View.OnClickListener;
+import android.widget.Toast;
 
 /**
  * @author Marshall Farrier
  * @version 0.1 2/12/11
  * This activity is called when the game is actually over.
  * Shows a screen with a custom message depending on game result.
+ * Meanwhile the finished game is analyzed in the background
+ * unless it has been analyzed before (cf. GameAnalysis).
  */
 
 public class GameOver extends Activity implements OnClickListener {
@@ -28,6 +36,10 @@ public class GameOver extends Activity implements OnClickListener {
 	private int colorResult;
 	// Result with respect to user
 	private int selfResult;
+	private int gameId;
+	private AnalyzeGameTask analyzeGameTask;
+	// Moves losing at least this much are counted as mistakes
+	private static final int MISTAKE_LOSS = 100;
 	
 	@Override
 	protected void onCreate(Bundle savedInstanceState) {
@@ -36,13 +48,25 @@ public class GameOver extends Activity implements OnClickListener {
         
         colorResult = getIntent().getIntExtra(COLOR_RESULT, -1);
         selfResult = getIntent().getIntExtra(SELF_RESULT, -1);
+        gameId = getIntent().getIntExtra(GAME_ID, -1);
         
         Log.d(TAG, "inflating view");
         setContentView(R.layout.game_over);
         
         findViewById(R.id.game_over_confirm).setOnClickListener(this);
+        
+        if (gameId > 0) {
+        	analyzeGameTask = new AnalyzeGameTask();
+        	analyzeGameTask.execute(gameId);
+        }
     }
 	
+	@Override
+	protected void onDestroy() {
+		if (analyzeGameTask != null) analyzeGameTask.stop();
+		super.onDestroy();
+	}
+	
 	public int colorResult() {
 		return colorResult;
 	}
@@ -57,4 +81,61 @@ public class GameOver extends Activity implements OnClickListener {
 			finish();
 		}		
 	}
+	
+	private class AnalyzeGameTask extends AsyncTask<Integer, Void, GameAnalysis> {
+		private volatile GameAnalysis analysis;
+		
+		@Override
+		protected GameAnalysis doInBackground(Integer... params) {
+			int gid = params[0];
+			ChessDataBaseAdapter db = new ChessDataBaseAdapter(GameOver.this);
+			ArrayList<Move> moveList;
+			try {
+				// The last move and the result may still be queued
+				DatabaseWriter.flush(GameOver.this);
+				db.open();
+				try {
+					moveList = db.moveList(gid);
+					GameAnalysis stored = db.getAnalysis(gid, moveList.size());
+					if (stored != null || moveList.isEmpty()) return stored;
+				} finally {
+					db.close();
+				}
+				if (isCancelled()) return null;
+				analysis = new GameAnalysis(moveList.size());
+				// Start from what pondering found during the game
+				if (!analysis.run(moveList, Engine.getInstance(GameOver.this).transpositionTable())) return null;
+				db.open();
+				try {
+					db.saveAnalysis(gid, analysis);
+				} finally {
+					db.close();
+				}
+			} catch (SQLiteException e) {
+				Log.e(TAG, "analysis not saved: " + e.getMessage());
+			} catch (InterruptedException e) {
+				return null;
+			}
+			return analysis;
+		}
+		
+		@Override
+		protected void onPostExecute(GameAnalysis result) {
+			if (result == null) return;
+			int mistakes = 0;
+			for (int ply = 0; ply < result.plies(); ++ply) {
+				if (result.loss(ply) >= MISTAKE_LOSS) ++mistakes;
+			}
+			Toast t = Toast.makeText(GameOver.this, "Analysis ready: " + mistakes + " mistakes found",
+					Toast.LENGTH_SHORT);
+			t.setGravity(Gravity.CENTER, 0, 0);
+			t.show();
+		}
+		
+		void stop() {
+			cancel(false);
+			GameAnalysis a = analysis;
+			if (a != null) a.stop();
+		}
+	}
 }
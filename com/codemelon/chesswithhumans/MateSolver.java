@@ -0,0 +1,221 @@
+/**
+ * @file
+ * Copyright (c) 2011 Marshall Farrier
+ */
+package com.codemelon.chesswithhumans;
+
+/**
+ * Finds forced mates by iterative deepening: mate in 1 is tried first,
+ * then mate in 2, etc. The attacker may be restricted to checking
+ * moves, which makes the search very narrow (and very fast) but misses
+ * mates starting with a quiet move.
+ *
+ * Positions in which the attacker was shown to have no mate within
+ * a number of moves are remembered in a small table of its own,
+ * so a solver should be reused for many positions (e.g. when verifying
+ * puzzles in bulk). A MateSolver is not thread safe.
+ */
+public class MateSolver {
+	// Must be a power of 2
+	private static final int TABLE_SIZE = 1 << 14;
+	private static final int MAX_MOVES = 256;
+	private static final int MAX_PLY = 2 * 8;
+
+	private final Position pos;
+	private final boolean checksOnly;
+	private final int[][] moves = new int[MAX_PLY + 1][MAX_MOVES];
+	private final int[][] pv = new int[MAX_PLY + 1][MAX_PLY + 1];
+	private final int[] pvLength = new int[MAX_PLY + 1];
+	// Hash of an attacker position -> greatest number of moves
+	// within which it has no mate
+	private final long[] keys = new long[TABLE_SIZE];
+	private final byte[] noMateWithin = new byte[TABLE_SIZE];
+
+	private long nodes;
+	private long nodeLimit;
+	private volatile boolean stopRequested;
+	private boolean aborted;
+
+	/**
+	 * @param checksOnly If true, only checking moves are tried for the attacker
+	 */
+	public MateSolver(boolean checksOnly) {
+		pos = new Position();
+		this.checksOnly = checksOnly;
+	}
+
+	/**
+	 * Looks for a mate for the side to move
+	 * @param p Not changed
+	 * @param maxMoves Longest mate looked for, in moves of the attacker (at most 8)
+	 * @param maxNodes Node budget; 0 for none
+	 * @return Mating line (packed moves, attacker's and defender's in turn),
+	 * null if there is no mate within maxMoves or the budget ran out
+	 */
+	public int[] solve(Position p, int maxMoves, long maxNodes) {
+		load(p);
+		return solve(maxMoves, maxNodes);
+	}
+
+	/**
+	 * Whether the given move forces mate, i.e., the side to move after it
+	 * is mated within maxMoves - 1 further moves of the attacker
+	 * @param p Not changed
+	 * @param move Packed move, must be legal in p
+	 * @param maxMoves Counting the given move
+	 * @param maxNodes Node budget; 0 for none
+	 * @return false also if the budget ran out
+	 */
+	public boolean forcesMate(Position p, int move, int maxMoves, long maxNodes) {
+		load(p);
+		start(maxNodes);
+		pos.move(Move.packedFrom(move), Move.packedTo(move), Move.packedPiece(move));
+		for (int n = 1; n <= Math.min(maxMoves, MAX_PLY / 2); ++n) {
+			if (defend(n, 1)) return true;
+			if (aborted) return false;
+		}
+		return false;
+	}
+
+	/**
+	 * @param p
+	 * @param maxMoves
+	 * @param maxNodes
+	 * @return Number of moves to mate, 0 if no mate was found
+	 */
+	public int mateIn(Position p, int maxMoves, long maxNodes) {
+		int[] line = solve(p, maxMoves, maxNodes);
+		return line == null ? 0 : (line.length + 1) / 2;
+	}
+
+	/**
+	 * May be called from any thread
+	 */
+	public void stop() {
+		stopRequested = true;
+	}
+
+	public long nodes() {
+		return nodes;
+	}
+
+	public void clear() {
+		for (int i = 0; i < TABLE_SIZE; ++i) {
+			keys[i] = 0;
+			noMateWithin[i] = 0;
+		}
+	}
+
+	private void load(Position p) {
+		// Reuse pos so that its buffers aren't reallocated
+		while (pos.movesMade() > 0) pos.unmove();
+		for (int i = 0; i < p.movesMade(); ++i) {
+			Move m = p.getMove(i);
+			pos.move(m.from(), m.to(), m.piece());
+		}
+	}
+
+	private void start(long maxNodes) {
+		nodes = 0;
+		nodeLimit = maxNodes > 0 ? maxNodes : Long.MAX_VALUE;
+		stopRequested = false;
+		aborted = false;
+	}
+
+	private int[] solve(int maxMoves, long maxNodes) {
+		start(maxNodes);
+		for (int n = 1; n <= Math.min(maxMoves, MAX_PLY / 2); ++n) {
+			if (attack(n, 0)) {
+				int[] line = new int[pvLength[0]];
+				System.arraycopy(pv[0], 0, line, 0, line.length);
+				return line;
+			}
+			if (aborted) break;
+		}
+		return null;
+	}
+
+	/**
+	 * True if the side to move mates within n moves
+	 */
+	private boolean attack(int n, int ply) {
+		pvLength[ply] = 0;
+		if (checkAbort()) return false;
+		long key = pos.hash();
+		int slot = (int) key & (TABLE_SIZE - 1);
+		if (keys[slot] == key && noMateWithin[slot] >= n) return false;
+		int[] list = moves[ply];
+		int count = pos.generateMoves(list, 0, false);
+		int m;
+		for (int i = 0; i < count; ++i) {
+			m = list[i];
+			pos.move(Move.packedFrom(m), Move.packedTo(m), Move.packedPiece(m));
+			if (pos.leftKingInCheck()
+					|| ((checksOnly || n == 1) && !pos.isInCheck(pos.hasMove()))) {
+				// Illegal, or can't lead to mate in time
+				pos.unmove();
+				continue;
+			}
+			boolean mates = defend(n, ply + 1);
+			pos.unmove();
+			if (mates) {
+				pv[ply][0] = m;
+				System.arraycopy(pv[ply + 1], 0, pv[ply], 1, pvLength[ply + 1]);
+				pvLength[ply] = pvLength[ply + 1] + 1;
+				return true;
+			}
+			if (aborted) return false;
+		}
+		if (keys[slot] != key || noMateWithin[slot] < n) {
+			keys[slot] = key;
+			noMateWithin[slot] = (byte) n;
+		}
+		return false;
+	}
+
+	/**
+	 * True if the side to move, having just been given check or
+	 * (without checksOnly) having been moved against, is mated
+	 * within n moves of the attacker, counting the one just made
+	 */
+	private boolean defend(int n, int ply) {
+		pvLength[ply] = 0;
+		if (checkAbort()) return false;
+		boolean inCheck = pos.isInCheck(pos.hasMove());
+		int[] list = moves[ply];
+		int count = pos.generateMoves(list, 0, false);
+		int m;
+		int legal = 0;
+		for (int i = 0; i < count; ++i) {
+			m = list[i];
+			pos.move(Move.packedFrom(m), Move.packedTo(m), Move.packedPiece(m));
+			if (pos.leftKingInCheck()) {
+				pos.unmove();
+				continue;
+			}
+			++legal;
+			if (n == 1) {
+				// A legal defense and no moves left
+				pos.unmove();
+				return false;
+			}
+			boolean mated = attack(n - 1, ply + 1);
+			pos.unmove();
+			if (!mated) return false;
+			if (legal == 1) {
+				pv[ply][0] = m;
+				System.arraycopy(pv[ply + 1], 0, pv[ply], 1, pvLength[ply + 1]);
+				pvLength[ply] = pvLength[ply + 1] + 1;
+			}
+		}
+		// No legal move: mate, or stalemate if not in check
+		return legal > 0 || inCheck;
+	}
+
+	private boolean checkAbort() {
+		if (aborted) return true;
+		++nodes;
+		if (stopRequested || nodes > nodeLimit) aborted = true;
+		return aborted;
+	}
+}
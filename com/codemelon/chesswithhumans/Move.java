@@ -31,4 +31,41 @@ public class Move {
 	public int piece() { return piece;}
 	public int from() { return from;}
 	public int to() { return to;}
+	
+	/*
+	 * Moves are also handled as packed ints wherever creating
+	 * objects would be too expensive (move generation, search):
+	 * bits 0-5 from square, bits 6-11 target square, bits 12-15 piece.
+	 * A packed move fits in 16 bits.
+	 */
+	public static final int NO_MOVE = 0;
+	
+	public static int pack(int p, int f, int t) {
+		return f | (t << 6) | (p << 12);
+	}
+	public static int packedFrom(int m) { return m & 0x3f; }
+	public static int packedTo(int m) { return (m >> 6) & 0x3f; }
+	public static int packedPiece(int m) { return (m >> 12) & 0xf; }
+	
+	public int pack() {
+		return pack(piece, from, to);
+	}
+	
+	public static Move unpack(int m) {
+		return new Move(packedPiece(m), packedFrom(m), packedTo(m));
+	}
+	
+	/*
+	 * Stored form of the moves of a game (cf. Constants.MOVES_COL):
+	 * PACKED_BYTES bytes per packed move, high byte first.
+	 */
+	public static final int PACKED_BYTES = 2;
+	
+	public static void write(int m, byte[] b, int offset) {
+		b[offset] = (byte) (m >> 8);
+		b[offset + 1] = (byte) m;
+	}
+	public static int read(byte[] b, int offset) {
+		return ((b[offset] & 0xff) << 8) | (b[offset + 1] & 0xff);
+	}
 }
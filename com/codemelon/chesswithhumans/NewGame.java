@@ -7,8 +7,6 @@ package com.codemelon.chesswithhumans;
 import static com.codemelon.chesswithhumans.Constants.*;
 
 import android.app.Activity;
-import android.database.sqlite.SQLiteConstraintException;
-import android.database.sqlite.SQLiteException;
 import android.os.Bundle;
 import android.util.Log;
 
@@ -29,22 +27,26 @@ public class NewGame extends Game {
         super.setMoveNumber(0);
         super.setWhite(randomBoolean());
         
-		db.open();
-		try {
-			if (white()) {
-				setGameId(db.newGame(selfId(), opponentId()));
+		final int white = white() ? selfId() : opponentId();
+		final int black = white() ? opponentId() : selfId();
+		DatabaseWriter.Command<Integer> newGame = new DatabaseWriter.Command<Integer>() {
+			@Override
+			protected Integer execute(ChessDataBaseAdapter writerDb) {
+				return writerDb.newGame(white, black);
 			}
-			else {
-				setGameId(db.newGame(opponentId(), selfId()));
+		};
+		newGame.setCallback(new DatabaseWriter.Callback<Integer>() {
+			public void done(Integer gid) {
+				if (gid != null) {
+					setGameId(gid);
+				}
+				else {
+					// TODO appropriate error window for user (then return to opening screen?)
+					Log.v(TAG, "error inserting new game row");
+				}
 			}
-		} catch (SQLiteConstraintException e) {
-			// TODO appropriate error window for user (then return to opening screen?)
-			Log.v(TAG, "error inserting new game row: " + e.getMessage());
-		} catch (SQLiteException e) {
-			Log.v(TAG, "error inserting new game row: " + e.getMessage());
-		} finally {		
-			db.close();
-		}
+		});
+		DatabaseWriter.submit(this, newGame);
         
         boardView = new BoardView(this, BoardView.VIEW_GAME);      
         
@@ -0,0 +1,95 @@
+/**
+ * @file
+ * Copyright (c) 2011 Marshall Farrier
+ */
+package com.codemelon.chesswithhumans;
+
+import static com.codemelon.chesswithhumans.Constants.*;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+
+import android.database.Cursor;
+import android.util.Log;
+
+/**
+ * Tree of the positions reached in the user's own finished games:
+ * for each position (by Zobrist hash) and move played from it, how often
+ * it was played and how those games ended. Stored in the explorer table,
+ * whose primary key makes a position lookup a single index search.
+ *
+ * The table is built incrementally: each finished game is added once,
+ * in the same transaction that marks it as added (cf. update()),
+ * so nothing is ever rebuilt.
+ */
+public class OpeningExplorer {
+	private static final String TAG = "cwfOpeningExplorer";
+	// Positions after this many plies aren't recorded
+	public static final int MAX_PLIES = 40;
+	private static final String[] FILES = {"a", "b", "c", "d", "e", "f", "g", "h"};
+
+	/**
+	 * Adds all finished games not added yet. Database must be open.
+	 * @param db
+	 * @return Number of games added
+	 */
+	public static int update(ChessDataBaseAdapter db) {
+		LinkedList<Integer> games = db.getUnexploredGames();
+		long[] hashes = new long[MAX_PLIES];
+		int[] moves = new int[MAX_PLIES];
+		for (int gameId : games) {
+			ArrayList<Move> moveList = db.moveList(gameId);
+			Position p = new Position();
+			int plies = Math.min(moveList.size(), MAX_PLIES);
+			Move m;
+			for (int ply = 0; ply < plies; ++ply) {
+				m = moveList.get(ply);
+				hashes[ply] = p.hash();
+				moves[ply] = m.pack();
+				p.move(m.from(), m.to(), m.piece());
+			}
+			db.addToExplorer(gameId, db.gameResult(gameId), hashes, moves, plies);
+		}
+		if (!games.isEmpty()) Log.d(TAG, games.size() + " games added");
+		return games.size();
+	}
+
+	/**
+	 * Short description of the moves played from the given position,
+	 * e.g. "e2e4 12 (+5 =3 -4)  d2d4 3 (+1 =0 -2)" where the counts
+	 * are white wins, draws and black wins. Database must be open.
+	 * @param db
+	 * @param positionHash
+	 * @param maxMoves
+	 * @return Empty string if the position never occurred
+	 */
+	public static String summary(ChessDataBaseAdapter db, long positionHash, int maxMoves) {
+		StringBuilder builder = new StringBuilder();
+		Cursor c = db.getExplorerMoves(positionHash);
+		try {
+			int moveCol = c.getColumnIndex(PACKED_MOVE_COL);
+			int gamesCol = c.getColumnIndex(GAMES_COL);
+			int whiteCol = c.getColumnIndex(WHITE_WINS_COL);
+			int drawsCol = c.getColumnIndex(DRAWS_COL);
+			int blackCol = c.getColumnIndex(BLACK_WINS_COL);
+			int m;
+			for (int i = 0; i < maxMoves && c.moveToNext(); ++i) {
+				if (i > 0) builder.append("  ");
+				m = c.getInt(moveCol);
+				builder.append(squareName(Move.packedFrom(m))).append(squareName(Move.packedTo(m)))
+					.append(" ").append(c.getInt(gamesCol))
+					.append(" (+").append(c.getInt(whiteCol))
+					.append(" =").append(c.getInt(drawsCol))
+					.append(" -").append(c.getInt(blackCol)).append(")");
+			}
+		}
+		finally {
+			c.close();
+		}
+		return builder.toString();
+	}
+
+	private static String squareName(int square) {
+		return FILES[square % Position.BOARD_SIZE] + (square / Position.BOARD_SIZE + 1);
+	}
+}
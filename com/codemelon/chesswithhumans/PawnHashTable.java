@@ -0,0 +1,98 @@
+/**
+ * @file
+ * Copyright (c) 2011 Marshall Farrier
+ */
+package com.codemelon.chesswithhumans;
+
+/**
+ * Cache for the pawn structure part of the evaluation, keyed
+ * by Position.pawnHash().
+ * Pawn structure rarely changes from one node to the next, so
+ * nearly all probes should hit.
+ * Entries are kept in parallel primitive arrays to avoid creating
+ * an object per entry. Always replaces on store.
+ * Not thread safe (each Evaluator has its own table).
+ */
+public class PawnHashTable {
+	// Must be a power of 2
+	public static final int DEFAULT_SIZE = 2048;
+	
+	private final long[] keys;
+	private final int[] mgScores;
+	private final int[] egScores;
+	private final long[] whitePassed;
+	private final long[] blackPassed;
+	private final boolean[] used;
+	private final int mask;
+	private long probes;
+	private long hits;
+	
+	public PawnHashTable() {
+		this(DEFAULT_SIZE);
+	}
+	
+	/**
+	 * @param size Number of entries, must be a power of 2
+	 */
+	public PawnHashTable(int size) {
+		if (size <= 0 || (size & (size - 1)) != 0) {
+			throw new IllegalArgumentException("PawnHashTable: size must be a power of 2");
+		}
+		keys = new long[size];
+		mgScores = new int[size];
+		egScores = new int[size];
+		whitePassed = new long[size];
+		blackPassed = new long[size];
+		used = new boolean[size];
+		mask = size - 1;
+	}
+	
+	/**
+	 * Returns the index of the entry for the given key, or -1
+	 * if it is not in the table
+	 * @param key
+	 * @return
+	 */
+	public int probe(long key) {
+		++probes;
+		int i = (int) key & mask;
+		if (used[i] && keys[i] == key) {
+			++hits;
+			return i;
+		}
+		return -1;
+	}
+	
+	public void store(long key, int mg, int eg, long wPassed, long bPassed) {
+		int i = (int) key & mask;
+		keys[i] = key;
+		mgScores[i] = mg;
+		egScores[i] = eg;
+		whitePassed[i] = wPassed;
+		blackPassed[i] = bPassed;
+		used[i] = true;
+	}
+	
+	public int mgScore(int index) { return mgScores[index]; }
+	public int egScore(int index) { return egScores[index]; }
+	/**
+	 * Bitboard of passed pawns of the given color
+	 * @param index
+	 * @param color
+	 * @return
+	 */
+	public long passedPawns(int index, int color) {
+		return color == Position.WHITE ? whitePassed[index] : blackPassed[index];
+	}
+	
+	public long probes() { return probes; }
+	public long hits() { return hits; }
+	
+	public void clear() {
+		for (int i = 0; i <= mask; ++i) {
+			used[i] = false;
+		}
+		probes = 0;
+		hits = 0;
+	}
+}
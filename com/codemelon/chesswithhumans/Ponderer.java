@@ -0,0 +1,209 @@
+/**
+ * @file
+ * Copyright (c) 2011 Marshall Farrier
+ */
+package com.codemelon.chesswithhumans;
+
+import static com.codemelon.chesswithhumans.Constants.*;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.BatteryManager;
+import android.os.Process;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+/**
+ * Analyzes the current game at low priority while the opponent is to move.
+ * The likely replies are searched one after another with time slices that
+ * double on each pass. The results go into the shared Engine's
+ * transposition table, which the review of the finished game starts
+ * from (cf. GameOver). The app has no hints or device opponent, so
+ * instead of having a reply ready the moment the opponent moves, this
+ * saves work in that review.
+ *
+ * Off unless the user switches it on (PONDER_PREF, cf. Game's menu).
+ * At most one game is pondered at a time, only while it is on screen.
+ * Pondering pauses while the battery is low or hot and gives up after
+ * MAX_PONDER_MILLIS.
+ */
+public class Ponderer implements Runnable {
+	private static final String TAG = "cwfPonderer";
+	private static final long FIRST_SLICE_MILLIS = 2000;
+	private static final long MAX_SLICE_MILLIS = 60000;
+	private static final long MAX_PONDER_MILLIS = 15 * 60 * 1000;
+	private static final long BACK_OFF_MILLIS = 60000;
+	// Don't ponder below this battery level unless charging
+	private static final int MIN_BATTERY_PERCENT = 30;
+	// In tenths of a degree Celsius, as reported by BatteryManager
+	private static final int MAX_BATTERY_TEMPERATURE = 400;
+	private static final int MAX_MOVES = 256;
+
+	private static Ponderer current;
+
+	private final Context context;
+	private final Engine engine;
+	private final int gameId;
+	private final Position root;
+	private volatile boolean stopped;
+	private volatile Search search;
+
+	private Ponderer(Context ctx, int gid, Position p) {
+		context = ctx.getApplicationContext();
+		engine = Engine.getInstance(context);
+		gameId = gid;
+		root = new Position(p);
+	}
+
+	public static boolean isEnabled(Context ctx) {
+		return PreferenceManager.getDefaultSharedPreferences(ctx).getBoolean(PONDER_PREF, false);
+	}
+	
+	/**
+	 * Saves the user's choice; switching off also stops any pondering
+	 * @param ctx
+	 * @param enabled
+	 */
+	public static void setEnabled(Context ctx, boolean enabled) {
+		PreferenceManager.getDefaultSharedPreferences(ctx).edit().putBoolean(PONDER_PREF, enabled).commit();
+		if (!enabled) stop();
+	}
+	
+	/**
+	 * Starts pondering the given position, replacing any pondering
+	 * currently going on. Does nothing if pondering is switched off.
+	 * @param ctx
+	 * @param gid
+	 * @param p Position with the opponent to move
+	 */
+	public static synchronized void start(Context ctx, int gid, Position p) {
+		if (!isEnabled(ctx)) return;
+		stop();
+		current = new Ponderer(ctx, gid, p);
+		Thread t = new Thread(current, "ponder-" + gid);
+		t.setPriority(Thread.MIN_PRIORITY);
+		t.start();
+	}
+
+	public static synchronized void stop() {
+		if (current != null) {
+			current.halt();
+			current = null;
+		}
+	}
+
+	/**
+	 * Stops pondering if the given game is the one being pondered
+	 * @param gid
+	 */
+	public static synchronized void stop(int gid) {
+		if (current != null && current.gameId == gid) stop();
+	}
+
+	private void halt() {
+		stopped = true;
+		Search s = search;
+		if (s != null) s.stop();
+	}
+
+	public void run() {
+		Process.setThreadPriority(Process.THREAD_PRIORITY_LOWEST);
+		long deadline = System.currentTimeMillis() + MAX_PONDER_MILLIS;
+		int[] replies = new int[MAX_MOVES];
+		int n = 0;
+		// Next reply to analyze in the current pass
+		int next = 0;
+		long slice = FIRST_SLICE_MILLIS;
+		boolean first = true;
+		int m;
+		while (!stopped && System.currentTimeMillis() < deadline) {
+			if (mustBackOff()) {
+				Log.d(TAG, "backing off");
+				try {
+					Thread.sleep(BACK_OFF_MILLIS);
+				}
+				catch (InterruptedException e) {
+					return;
+				}
+				continue;
+			}
+			if (first) {
+				// Predict the reply; the prediction is then searched first
+				m = analyze(root, slice);
+				if (stopped) break;
+				n = legalReplies(replies, m);
+				if (n == 0) break;
+				first = false;
+			}
+			for (; next < n && !stopped && !mustBackOff(); ++next) {
+				Position p = new Position(root);
+				p.move(Move.packedFrom(replies[next]), Move.packedTo(replies[next]), Move.packedPiece(replies[next]));
+				analyze(p, slice);
+			}
+			if (next == n) {
+				next = 0;
+				if (slice < MAX_SLICE_MILLIS) slice *= 2;
+			}
+		}
+		Log.d(TAG, "pondering of game " + gameId + " ended");
+	}
+
+	/**
+	 * Searches p, filling the transposition table
+	 * @return Best move found
+	 */
+	private int analyze(Position p, long millis) {
+		Search s = new Search(p, engine.transpositionTable());
+		search = s;
+		if (stopped) return Move.NO_MOVE;
+		int m = s.search(Engine.DEFAULT_MAX_DEPTH, millis, 0);
+		search = null;
+		return m;
+	}
+
+	/**
+	 * Legal moves in root with the predicted move first
+	 */
+	private int legalReplies(int[] replies, int predicted) {
+		int n = root.generateMoves(replies, 0, false);
+		int legal = 0;
+		int m;
+		for (int i = 0; i < n; ++i) {
+			m = replies[i];
+			root.move(Move.packedFrom(m), Move.packedTo(m), Move.packedPiece(m));
+			if (!root.leftKingInCheck()) {
+				replies[legal++] = m;
+				if (m == predicted) {
+					replies[legal - 1] = replies[0];
+					replies[0] = m;
+				}
+			}
+			root.unmove();
+		}
+		return legal;
+	}
+
+	private boolean mustBackOff() {
+		return mustBackOff(context);
+	}
+	
+	/**
+	 * Whether background analysis should pause.
+	 * Checks the sticky battery broadcast, which also covers
+	 * the temperature (the best thermal indication available)
+	 * @param context
+	 * @return
+	 */
+	static boolean mustBackOff(Context context) {
+		Intent battery = context.registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+		if (battery == null) return false;
+		int temperature = battery.getIntExtra(BatteryManager.EXTRA_TEMPERATURE, 0);
+		if (temperature > MAX_BATTERY_TEMPERATURE) return true;
+		if (battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0) return false;
+		int level = battery.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+		int scale = battery.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
+		if (level < 0 || scale <= 0) return false;
+		return level * 100 / scale < MIN_BATTERY_PERCENT;
+	}
+}
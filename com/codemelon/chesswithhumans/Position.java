@@ -58,6 +58,35 @@ public class Position {
 	private ArrayList<Move> moveList;
 	private int hasMove;
 	
+	/*
+	 * Incrementally maintained evaluation terms (cf. Evaluator).
+	 * Material and piece-square values are kept as white minus black
+	 * so that Evaluator never has to scan the 64 squares.
+	 */
+	private int mgScore;
+	private int egScore;
+	private int phase;
+	// Pawn bitboards indexed by color, bit i set iff pos[i] holds a pawn
+	private long[] pawns;
+	private int[] kingSquare;
+	/*
+	 * One packed entry per item in moveList, needed to take a move back
+	 * (cf. unmove()): captured piece + 1, capture square, piece moved
+	 * and the castling flags as they were before the move.
+	 */
+	private int[] undoStack;
+	// Zobrist hash of the position and of the pawns alone (cf. Zobrist)
+	private long hash;
+	private long pawnHash;
+	// File of the pawn that can currently be taken e.p., otherwise -1
+	private int epFile;
+	// Values of hash and pawnHash before each move in moveList
+	private long[] hashHistory;
+	private long[] pawnHashHistory;
+	private static final int UNDO_SQUARE_SHIFT = 4;
+	private static final int UNDO_MOVED_SHIFT = 10;
+	private static final int UNDO_CASTLING_SHIFT = 14;
+	
 	// Constructor for a new game
 	public Position() {
 		// Initialize board
@@ -73,7 +102,53 @@ public class Position {
 			kingRookHasMoved[i] = false;
 		}
 		moveList = new ArrayList<Move>(MOVE_LIST_CAPACITY);
+		undoStack = new int[MOVE_LIST_CAPACITY];
+		hashHistory = new long[MOVE_LIST_CAPACITY];
+		pawnHashHistory = new long[MOVE_LIST_CAPACITY];
 		hasMove = WHITE;
+		initIncrementalTerms();
+	}
+	
+	/**
+	 * Independent copy of the given position (with the same move list),
+	 * e.g. for searching on another thread
+	 * @param other
+	 */
+	public Position(Position other) {
+		this(other.moveList);
+	}
+	
+	/**
+	 * Makes this position identical to the given one without replaying
+	 * its moves: the board and flags are copied and the history arrays
+	 * reused when large enough (cf. VariationTree)
+	 * @param other
+	 */
+	void copyFrom(Position other) {
+		System.arraycopy(other.pos, 0, pos, 0, SQUARES);
+		System.arraycopy(other.kingHasMoved, 0, kingHasMoved, 0, 2);
+		System.arraycopy(other.queenRookHasMoved, 0, queenRookHasMoved, 0, 2);
+		System.arraycopy(other.kingRookHasMoved, 0, kingRookHasMoved, 0, 2);
+		System.arraycopy(other.pawns, 0, pawns, 0, 2);
+		System.arraycopy(other.kingSquare, 0, kingSquare, 0, 2);
+		int plies = other.moveList.size();
+		moveList.clear();
+		moveList.addAll(other.moveList);
+		if (undoStack.length < plies) {
+			undoStack = new int[other.undoStack.length];
+			hashHistory = new long[other.undoStack.length];
+			pawnHashHistory = new long[other.undoStack.length];
+		}
+		System.arraycopy(other.undoStack, 0, undoStack, 0, plies);
+		System.arraycopy(other.hashHistory, 0, hashHistory, 0, plies);
+		System.arraycopy(other.pawnHashHistory, 0, pawnHashHistory, 0, plies);
+		hasMove = other.hasMove;
+		mgScore = other.mgScore;
+		egScore = other.egScore;
+		phase = other.phase;
+		hash = other.hash;
+		pawnHash = other.pawnHash;
+		epFile = other.epFile;
 	}
 	
 	// For continuing a game
@@ -172,6 +247,72 @@ public class Position {
 		return pos[square];
 	}
 	
+	/**
+	 * Material plus middlegame piece-square values, white minus black
+	 * @return
+	 */
+	public int mgScore() {
+		return mgScore;
+	}
+	/**
+	 * Material plus endgame piece-square values, white minus black
+	 * @return
+	 */
+	public int egScore() {
+		return egScore;
+	}
+	/**
+	 * Sum of Evaluator.phaseWeight() over all pieces on the board:
+	 * Evaluator.TOTAL_PHASE in the opening, 0 with only kings and pawns
+	 * @return
+	 */
+	public int phase() {
+		return phase;
+	}
+	public long pawns(int color) {
+		return pawns[color];
+	}
+	public int kingSquare(int color) {
+		return kingSquare[color];
+	}
+	/**
+	 * Zobrist hash of the current position, including side to move,
+	 * castling status and e.p. possibility
+	 * @return
+	 */
+	public long hash() {
+		return hash;
+	}
+	/**
+	 * Zobrist hash of the pawns only, for the pawn structure cache
+	 * @return
+	 */
+	public long pawnHash() {
+		return pawnHash;
+	}
+	/**
+	 * Hash of the position before the given move (0-based) was made
+	 * @param ply Must be less than movesMade()
+	 * @return
+	 */
+	public long hashBefore(int ply) {
+		return hashHistory[ply];
+	}
+	public int movesMade() {
+		return moveList.size();
+	}
+	/**
+	 * The given move (0-based) of the move list
+	 * @param ply
+	 * @return
+	 */
+	public Move getMove(int ply) {
+		return moveList.get(ply);
+	}
+	public boolean isCapture(int from, int to) {
+		return pos[to] != NONE || (pos[from] % PIECES == PAWN && from % BOARD_SIZE != to % BOARD_SIZE);
+	}
+	
 	/**
 	 * Returns the code corresponding to the current draw status, e.g.
 	 * DRAW_BY_REPETITION, etc. (cf. respective constants)
@@ -180,7 +321,11 @@ public class Position {
 	public int drawStatus() {
 		Log.d(TAG, "retrieving draw status");
 		// TODO complete list of possible draws
-		if (fiftyMoveDraw()) {
+		// Blockades proven in the background (cf. DeadPositionDetector)
+		if (DeadPositionDetector.isProvenDead(hash)) {
+			return DRAW_BY_NO_MORE_CHECKMATE;
+		}
+		else if (fiftyMoveDraw()) {
 			return DRAW_BY_FIFTY_MOVE_RULE;
 		}
 		/*
@@ -437,6 +582,7 @@ public class Position {
 	 * 3) Complete blockade with bishop that can't break through
 	 * Blockade with queen: queen can always take an opponent's pawn
 	 * Blockade with rook: rook can always be sacrificed allowing pawn break-through
+	 * Cases 2) and 3) are handled by DeadPositionDetector
 	 */
 	public boolean checkmateImpossible() {
 		int bishopColor = -1;
@@ -464,6 +610,29 @@ public class Position {
 		return true;
 	}
 	
+	/**
+	 * Exact outcome of KQK, KRK and KPK endings according to Bitbase.
+	 * Note that a bitbase draw is not a draw under the rules
+	 * (the weaker side must still find the drawing moves), so this
+	 * doesn't feed into drawStatus().
+	 * @return Bitbase.WIN, Bitbase.LOSS or Bitbase.DRAW for the side to move,
+	 * Bitbase.UNKNOWN if the position isn't covered
+	 */
+	public int bitbaseResult() {
+		// Quick rejection: more than a queen's worth of pieces or more than one pawn
+		if (phase > Evaluator.phaseWeight(QUEEN)) return Bitbase.UNKNOWN;
+		if (Long.bitCount(pawns[WHITE] | pawns[BLACK]) > 1) return Bitbase.UNKNOWN;
+		// The tables know nothing about castling
+		for (int c = 0; c < 2; ++c) {
+			if (!kingHasMoved[c] && pos[c * 7 * BOARD_SIZE + 4] == c * PIECES + KING
+					&& ((!queenRookHasMoved[c] && pos[c * 7 * BOARD_SIZE] == c * PIECES + ROOK)
+					|| (!kingRookHasMoved[c] && pos[c * 7 * BOARD_SIZE + 7] == c * PIECES + ROOK))) {
+				return Bitbase.UNKNOWN;
+			}
+		}
+		return Bitbase.probe(pos, hasMove);
+	}
+	
 	/**
 	 * This method assumes that the piece on the 'from' square is a Q.
 	 * This is for efficiency purposes to avoid checking twice but also
@@ -786,7 +955,7 @@ public class Position {
 	}
 	
 	public boolean isInCheck(int kingColor) {
-		return isInCheck(pos, kingColor);
+		return isAttacked(pos, kingSquare[kingColor], (kingColor + 1) % 2);
 	}
 	
 	/**
@@ -797,8 +966,24 @@ public class Position {
 	 * @return
 	 */
 	private static boolean isInCheck(int[] posit, int kingColor) {
+		return isAttacked(posit, findPiece(posit, kingColor * PIECES + KING), (kingColor + 1) % 2);
+	}
+	
+	/**
+	 * Determines whether the given square is attacked by a piece of
+	 * the given color in the current position
+	 * @param square
+	 * @param attackerColor
+	 * @return
+	 */
+	public boolean isAttacked(int square, int attackerColor) {
+		return isAttacked(pos, square, attackerColor);
+	}
+	
+	private static boolean isAttacked(int[] posit, int square, int attackerColor) {
 		int i, j, row, col, startRow, stopRow, startCol, stopCol, tmp;
-		final int OPPOSITE_COLOR = (kingColor + 1) % 2;
+		final int kingColor = (attackerColor + 1) % 2;
+		final int OPPOSITE_COLOR = attackerColor;
 		final int OPP_KING = OPPOSITE_COLOR * PIECES + KING;
 		final int OPP_QUEEN = OPPOSITE_COLOR * PIECES + QUEEN;
 		final int OPP_BISHOP = OPPOSITE_COLOR * PIECES + BISHOP;
@@ -806,10 +991,8 @@ public class Position {
 		final int OPP_ROOK = OPPOSITE_COLOR * PIECES + ROOK;
 		final int OPP_PAWN = OPPOSITE_COLOR * PIECES + PAWN;
 		
-		// Find the king's position
-		int kingPos = findPiece(posit, kingColor * PIECES + KING);
-		row = kingPos / BOARD_SIZE;
-		col = kingPos % BOARD_SIZE;		
+		row = square / BOARD_SIZE;
+		col = square % BOARD_SIZE;		
 		
 		// Check adjacent squares for opposing king
 		startRow = row - 1;
@@ -958,6 +1141,29 @@ public class Position {
 	 * @param piece
 	 */
 	protected void move(int from, int to, int piece) {
+		// Save what is needed to take the move back
+		int ply = moveList.size();
+		if (ply == undoStack.length) {
+			int[] tmp = new int[2 * ply];
+			System.arraycopy(undoStack, 0, tmp, 0, ply);
+			undoStack = tmp;
+			long[] tmpHashes = new long[2 * ply];
+			System.arraycopy(hashHistory, 0, tmpHashes, 0, ply);
+			hashHistory = tmpHashes;
+			tmpHashes = new long[2 * ply];
+			System.arraycopy(pawnHashHistory, 0, tmpHashes, 0, ply);
+			pawnHashHistory = tmpHashes;
+		}
+		hashHistory[ply] = hash;
+		pawnHashHistory[ply] = pawnHash;
+		int oldCastlingFlags = castlingFlags();
+		int capturedSquare = to;
+		if (pos[from] % PIECES == PAWN && pos[to] == NONE && from % BOARD_SIZE != to % BOARD_SIZE) {
+			// e.p.
+			capturedSquare = (piece / PIECES == BLACK) ? to + BOARD_SIZE : to - BOARD_SIZE;
+		}
+		undoStack[ply] = (pos[capturedSquare] + 1) | (capturedSquare << UNDO_SQUARE_SHIFT)
+			| (pos[from] << UNDO_MOVED_SHIFT) | (oldCastlingFlags << UNDO_CASTLING_SHIFT);
 		// Add move to move list
 		moveList.add(new Move(piece, from, to));
 		// Adjust castling possibilities as necessary
@@ -971,9 +1177,154 @@ public class Position {
 			kingRookHasMoved[hasMove] = true;
 		}
 		// Modify position
-		executeMove(pos, from, to, piece);
+		if (capturedSquare != to) setSquare(capturedSquare, NONE);
+		setSquare(from, NONE);
+		setSquare(to, piece);
+		if (piece % PIECES == KING) {
+			int castles = isCastlingMove(piece / PIECES, from, to);
+			if (castles == 1) {	// king's side
+				setSquare(to + 1, NONE);
+				setSquare(to - 1, piece - KING + ROOK);
+			}
+			else if (castles == -1) {	// queen's side
+				setSquare(to - 2, NONE);
+				setSquare(to + 1, piece - KING + ROOK);
+			}
+		}
 		// Change hasMove
 		hasMove = (hasMove + 1) % 2;
+		// Remaining hash components
+		hash ^= Zobrist.BLACK_TO_MOVE;
+		hash ^= Zobrist.CASTLING[oldCastlingFlags] ^ Zobrist.CASTLING[castlingFlags()];
+		if (epFile >= 0) hash ^= Zobrist.EN_PASSANT[epFile];
+		epFile = enPassantFile();
+		if (epFile >= 0) hash ^= Zobrist.EN_PASSANT[epFile];
+	}
+	
+	/**
+	 * Takes back the last move in moveList, restoring the position
+	 * (including castling status and incremental evaluation terms)
+	 * exactly as it was before the corresponding call to move().
+	 * Unsafe: assumes that at least one move has been made.
+	 */
+	protected void unmove() {
+		int ply = moveList.size() - 1;
+		Move m = moveList.remove(ply);
+		int undo = undoStack[ply];
+		int captured = (undo & 0xf) - 1;
+		int capturedSquare = (undo >> UNDO_SQUARE_SHIFT) & 0x3f;
+		int moved = (undo >> UNDO_MOVED_SHIFT) & 0xf;
+		hasMove = (hasMove + 1) % 2;
+		setCastlingFlags(undo >>> UNDO_CASTLING_SHIFT);
+		if (moved % PIECES == KING) {
+			int castles = isCastlingMove(hasMove, m.from(), m.to());
+			if (castles == 1) {
+				setSquare(m.to() - 1, NONE);
+				setSquare(m.to() + 1, moved - KING + ROOK);
+			}
+			else if (castles == -1) {
+				setSquare(m.to() + 1, NONE);
+				setSquare(m.to() - 2, moved - KING + ROOK);
+			}
+		}
+		setSquare(m.to(), NONE);
+		setSquare(m.from(), moved);
+		if (captured != NONE) setSquare(capturedSquare, captured);
+		hash = hashHistory[ply];
+		pawnHash = pawnHashHistory[ply];
+		epFile = enPassantFile();
+	}
+	
+	/**
+	 * Returns the file of the pawn that can be taken e.p. in the current
+	 * position, -1 if none
+	 * @return
+	 */
+	private int enPassantFile() {
+		int numMoves = moveList.size();
+		if (numMoves == 0) return -1;
+		Move lastMove = moveList.get(numMoves - 1);
+		if (allowsEnPassant(pos, lastMove.from(), lastMove.to())) return lastMove.to() % BOARD_SIZE;
+		return -1;
+	}
+	
+	/**
+	 * Sets the given square on the board, keeping the incremental
+	 * evaluation terms up to date.
+	 * @param square
+	 * @param piece May be NONE
+	 */
+	private void setSquare(int square, int piece) {
+		int old = pos[square];
+		if (old != NONE) {
+			hash ^= Zobrist.PIECE_SQUARE[old][square];
+			int color = old / PIECES;
+			int sign = 1 - 2 * color;
+			mgScore -= sign * Evaluator.mgValue(old, square);
+			egScore -= sign * Evaluator.egValue(old, square);
+			phase -= Evaluator.phaseWeight(old);
+			if (old % PIECES == PAWN) {
+				pawns[color] &= ~(1L << square);
+				pawnHash ^= Zobrist.PIECE_SQUARE[old][square];
+			}
+		}
+		pos[square] = piece;
+		if (piece != NONE) {
+			hash ^= Zobrist.PIECE_SQUARE[piece][square];
+			int color = piece / PIECES;
+			int sign = 1 - 2 * color;
+			mgScore += sign * Evaluator.mgValue(piece, square);
+			egScore += sign * Evaluator.egValue(piece, square);
+			phase += Evaluator.phaseWeight(piece);
+			if (piece % PIECES == PAWN) {
+				pawns[color] |= 1L << square;
+				pawnHash ^= Zobrist.PIECE_SQUARE[piece][square];
+			}
+			else if (piece % PIECES == KING) kingSquare[color] = square;
+		}
+	}
+	
+	/**
+	 * Computes the incremental evaluation terms from scratch.
+	 * Only needed when pos has been set up directly rather than by setSquare().
+	 * Castling status, hasMove and moveList must already be set.
+	 */
+	private void initIncrementalTerms() {
+		mgScore = 0;
+		egScore = 0;
+		phase = 0;
+		pawns = new long[2];
+		kingSquare = new int[2];
+		hash = 0;
+		pawnHash = 0;
+		int piece;
+		for (int i = 0; i < SQUARES; ++i) {
+			piece = pos[i];
+			pos[i] = NONE;
+			setSquare(i, piece);
+		}
+		hash ^= Zobrist.CASTLING[castlingFlags()];
+		if (hasMove == BLACK) hash ^= Zobrist.BLACK_TO_MOVE;
+		epFile = enPassantFile();
+		if (epFile >= 0) hash ^= Zobrist.EN_PASSANT[epFile];
+	}
+	
+	int castlingFlags() {
+		int result = 0;
+		for (int i = 0; i < 2; ++i) {
+			if (kingHasMoved[i]) result |= 1 << (3 * i);
+			if (queenRookHasMoved[i]) result |= 2 << (3 * i);
+			if (kingRookHasMoved[i]) result |= 4 << (3 * i);
+		}
+		return result;
+	}
+	
+	private void setCastlingFlags(int flags) {
+		for (int i = 0; i < 2; ++i) {
+			kingHasMoved[i] = (flags & (1 << (3 * i))) != 0;
+			queenRookHasMoved[i] = (flags & (2 << (3 * i))) != 0;
+			kingRookHasMoved[i] = (flags & (4 << (3 * i))) != 0;
+		}
 	}
 	/**
 	 * Completely unsafe method: Assumes that move has been
@@ -1334,6 +1685,153 @@ public class Position {
 		return moves;
 	}
 	
+	private static final int[] KNIGHT_ROW_STEPS = {-2, -2, -1, -1, 1, 1, 2, 2};
+	private static final int[] KNIGHT_COL_STEPS = {-1, 1, -2, 2, -2, 2, -1, 1};
+	private static final int[] KING_ROW_STEPS = {-1, -1, -1, 0, 0, 1, 1, 1};
+	private static final int[] KING_COL_STEPS = {-1, 0, 1, -1, 1, -1, 0, 1};
+	// Rook directions first, then bishop directions
+	private static final int[] SLIDER_ROW_STEPS = {0, 0, -1, 1, -1, -1, 1, 1};
+	private static final int[] SLIDER_COL_STEPS = {-1, 1, 0, 0, -1, 1, -1, 1};
+	
+	/**
+	 * Allocation-free move generator for the engine.
+	 * Writes packed moves (cf. Move.pack()) for hasMove into moves
+	 * starting at index start and returns the index following the last move.
+	 * Like movesNoCastling(), moves leaving the king in check are included:
+	 * the caller has to reject them after move() (cf. leftKingInCheck()).
+	 * Castling moves are only included if fully legal.
+	 * @param moves Must have room for all moves (256 is always enough)
+	 * @param start
+	 * @param capturesOnly Only captures and queen promotions, e.g. for quiescence search
+	 * @return
+	 */
+	public int generateMoves(int[] moves, int start, boolean capturesOnly) {
+		int n = start;
+		int from, piece, type, row, col, r, c, d, to;
+		final int own = hasMove * PIECES;
+		for (from = 0; from < SQUARES; ++from) {
+			piece = pos[from];
+			if (piece == NONE || piece / PIECES != hasMove) continue;
+			type = piece % PIECES;
+			row = from / BOARD_SIZE;
+			col = from % BOARD_SIZE;
+			switch (type) {
+			case PAWN:
+				n = generatePawnMoves(moves, n, from, capturesOnly);
+				break;
+			case KNIGHT:
+			case KING:
+				for (d = 0; d < 8; ++d) {
+					if (type == KNIGHT) {
+						r = row + KNIGHT_ROW_STEPS[d];
+						c = col + KNIGHT_COL_STEPS[d];
+					}
+					else {
+						r = row + KING_ROW_STEPS[d];
+						c = col + KING_COL_STEPS[d];
+					}
+					if (r < 0 || r >= BOARD_SIZE || c < 0 || c >= BOARD_SIZE) continue;
+					to = r * BOARD_SIZE + c;
+					if (pos[to] == NONE) {
+						if (!capturesOnly) moves[n++] = Move.pack(piece, from, to);
+					}
+					else if (pos[to] / PIECES != hasMove) {
+						moves[n++] = Move.pack(piece, from, to);
+					}
+				}
+				if (type == KING && !capturesOnly && !kingHasMoved[hasMove]
+						&& from == origKingPos(hasMove)) {
+					if (!kingRookHasMoved[hasMove] && pos[from + 3] == own + ROOK
+							&& isKingMove(from, from + 2)) {
+						moves[n++] = Move.pack(piece, from, from + 2);
+					}
+					if (!queenRookHasMoved[hasMove] && pos[from - 4] == own + ROOK
+							&& isKingMove(from, from - 2)) {
+						moves[n++] = Move.pack(piece, from, from - 2);
+					}
+				}
+				break;
+			default:	// Sliding pieces
+				int firstDir = type == BISHOP ? 4 : 0;
+				int lastDir = type == ROOK ? 4 : 8;
+				for (d = firstDir; d < lastDir; ++d) {
+					r = row + SLIDER_ROW_STEPS[d];
+					c = col + SLIDER_COL_STEPS[d];
+					while (r >= 0 && r < BOARD_SIZE && c >= 0 && c < BOARD_SIZE) {
+						to = r * BOARD_SIZE + c;
+						if (pos[to] == NONE) {
+							if (!capturesOnly) moves[n++] = Move.pack(piece, from, to);
+						}
+						else {
+							if (pos[to] / PIECES != hasMove) moves[n++] = Move.pack(piece, from, to);
+							break;
+						}
+						r += SLIDER_ROW_STEPS[d];
+						c += SLIDER_COL_STEPS[d];
+					}
+				}
+			}
+		}
+		return n;
+	}
+	
+	private int generatePawnMoves(int[] moves, int n, int from, boolean capturesOnly) {
+		final int own = hasMove * PIECES;
+		int direction = 1;
+		int origRow = 1;
+		int lastRow = BOARD_SIZE - 1;
+		if (hasMove == BLACK) {
+			direction = -1;
+			origRow = 6;
+			lastRow = 0;
+		}
+		int fromRow = from / BOARD_SIZE;
+		int fromCol = from % BOARD_SIZE;
+		int to = from + direction * BOARD_SIZE;
+		boolean promotes = to / BOARD_SIZE == lastRow;
+		int i, c;
+		// No taking
+		if (pos[to] == NONE) {
+			if (promotes) {
+				moves[n++] = Move.pack(own + QUEEN, from, to);
+				if (!capturesOnly) {
+					for (i = ROOK; i <= BISHOP; ++i) moves[n++] = Move.pack(own + i, from, to);
+				}
+			}
+			else if (!capturesOnly) {
+				moves[n++] = Move.pack(own + PAWN, from, to);
+				if (fromRow == origRow && pos[to + direction * BOARD_SIZE] == NONE) {
+					moves[n++] = Move.pack(own + PAWN, from, to + direction * BOARD_SIZE);
+				}
+			}
+		}
+		// Taking (including e.p.)
+		for (c = fromCol - 1; c <= fromCol + 1; c += 2) {
+			if (c < 0 || c >= BOARD_SIZE) continue;
+			to = (fromRow + direction) * BOARD_SIZE + c;
+			if ((pos[to] != NONE && pos[to] / PIECES != hasMove)
+					|| (pos[to] == NONE && epFile == c && fromRow == (hasMove == WHITE ? 4 : 3))) {
+				if (promotes) {
+					for (i = QUEEN; i <= BISHOP; ++i) moves[n++] = Move.pack(own + i, from, to);
+				}
+				else {
+					moves[n++] = Move.pack(own + PAWN, from, to);
+				}
+			}
+		}
+		return n;
+	}
+	
+	/**
+	 * True iff the side that made the last move left its own king in check,
+	 * i.e. the last move was illegal. Used with generateMoves().
+	 * @return
+	 */
+	public boolean leftKingInCheck() {
+		int mover = (hasMove + 1) % 2;
+		return isAttacked(pos, kingSquare[mover], hasMove);
+	}
+	
 	/**
 	 * List of all possible moves for the piece on the from square.
 	 * The move list includes moves leaving the king in check.
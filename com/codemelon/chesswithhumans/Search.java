@@ -0,0 +1,399 @@
+/**
+ * @file
+ * Copyright (c) 2011 Marshall Farrier
+ */
+package com.codemelon.chesswithhumans;
+
+import android.util.Log;
+
+/**
+ * Iterative deepening alpha-beta search with quiescence search.
+ * A Search works on its own copy of the position, so it can run on
+ * any thread. The transposition table may be shared between searches.
+ * Scores are in centipawns from the point of view of the side to move.
+ */
+public class Search {
+	private static final String TAG = "cwfSearch";
+	public static final int INFINITY = 32000;
+	public static final int MATE = 30000;
+	// Scores beyond this are mates
+	public static final int MATE_BOUND = MATE - 1000;
+	// Won according to Bitbase, but mate not yet in sight
+	public static final int KNOWN_WIN = 20000;
+	public static final int MAX_PLY = 64;
+	private static final int MAX_MOVES = 256;
+	// How often (in nodes) time and stop request are checked
+	private static final int CHECK_INTERVAL = 1023;
+
+	private final Position pos;
+	private final Evaluator evaluator;
+	private final TranspositionTable tt;
+	private final int[][] moves = new int[MAX_PLY + 1][MAX_MOVES];
+	private final int[][] orderScores = new int[MAX_PLY + 1][MAX_MOVES];
+	private final int[][] pv = new int[MAX_PLY + 1][MAX_PLY + 1];
+	private final int[] pvLength = new int[MAX_PLY + 1];
+
+	private volatile boolean stopRequested;
+	private boolean aborted;
+	private long deadline;
+	private long nodeLimit;
+	private long nodes;
+
+	private int bestMove;
+	private int bestScore;
+	private int completedDepth;
+	private int[] bestLine;
+	// Root moves not to be searched (cf. multiPv())
+	private final int[] excluded = new int[MAX_MOVES];
+	private int excludedCount;
+	private int[] lineScores = new int[0];
+	private int[][] lines = new int[0][];
+
+	public Search(Position p, TranspositionTable table) {
+		pos = new Position(p);
+		evaluator = new Evaluator();
+		tt = table;
+	}
+
+	/**
+	 * Searches the root position to increasing depths until maxDepth is
+	 * reached, time runs out or stop() is called.
+	 * Results of the last completed iteration are available through
+	 * bestMove(), bestScore() and principalVariation().
+	 * @param maxDepth
+	 * @param millis Time budget; 0 for none
+	 * @param maxNodes Node budget; 0 for none
+	 * @return Best move found (packed), Move.NO_MOVE if there is no legal move
+	 */
+	public int search(int maxDepth, long millis, long maxNodes) {
+		aborted = false;
+		nodes = 0;
+		deadline = millis > 0 ? System.currentTimeMillis() + millis : Long.MAX_VALUE;
+		nodeLimit = maxNodes > 0 ? maxNodes : Long.MAX_VALUE;
+		bestMove = Move.NO_MOVE;
+		bestScore = 0;
+		completedDepth = 0;
+		bestLine = new int[0];
+		tt.newSearch();
+		if (maxDepth > MAX_PLY) maxDepth = MAX_PLY;
+
+		for (int depth = 1; depth <= maxDepth; ++depth) {
+			int score = negamax(depth, 0, -INFINITY, INFINITY);
+			if (aborted) break;
+			completedDepth = depth;
+			bestScore = score;
+			bestLine = new int[pvLength[0]];
+			System.arraycopy(pv[0], 0, bestLine, 0, pvLength[0]);
+			bestMove = bestLine.length > 0 ? bestLine[0] : Move.NO_MOVE;
+			Log.d(TAG, "depth " + depth + " score " + score + " nodes " + nodes);
+			// No need to look further once a forced mate has been found
+			if (Math.abs(score) > MATE_BOUND) break;
+		}
+		if (bestMove == Move.NO_MOVE && aborted) {
+			// Interrupted before depth 1 completed: any legal move will do
+			bestMove = firstLegalMove();
+		}
+		return bestMove;
+	}
+
+	/**
+	 * Finds the best few lines, each by searching the root position again
+	 * without the first moves of the lines already found.
+	 * The time budget is split evenly between the lines.
+	 * @param lineCount Number of lines wanted
+	 * @param maxDepth
+	 * @param millis Total time budget; 0 for none
+	 * @param maxNodes Node budget per line; 0 for none
+	 * @return Number of lines found (fewer if there are fewer legal moves
+	 * or the search was stopped)
+	 */
+	public int multiPv(int lineCount, int maxDepth, long millis, long maxNodes) {
+		int[] scores = new int[lineCount];
+		int[][] found = new int[lineCount][];
+		int n = 0;
+		long start = System.currentTimeMillis();
+		long remaining;
+		excludedCount = 0;
+		try {
+			while (n < lineCount) {
+				remaining = 0;
+				if (millis > 0) {
+					remaining = (millis - (System.currentTimeMillis() - start)) / (lineCount - n);
+					if (remaining <= 0) break;
+				}
+				search(maxDepth, remaining, maxNodes);
+				if (completedDepth == 0 || bestMove == Move.NO_MOVE) break;
+				scores[n] = bestScore;
+				found[n] = bestLine;
+				++n;
+				excluded[excludedCount++] = bestMove;
+				if (stopRequested) break;
+			}
+		}
+		finally {
+			excludedCount = 0;
+		}
+		lineScores = new int[n];
+		lines = new int[n][];
+		System.arraycopy(scores, 0, lineScores, 0, n);
+		System.arraycopy(found, 0, lines, 0, n);
+		return n;
+	}
+
+	/**
+	 * @param i
+	 * @return Score of line i found by the last call to multiPv()
+	 */
+	public int lineScore(int i) {
+		return lineScores[i];
+	}
+
+	/**
+	 * @param i
+	 * @return Line i (packed moves) found by the last call to multiPv()
+	 */
+	public int[] line(int i) {
+		return lines[i];
+	}
+
+	/**
+	 * May be called from any thread. A stopped Search stays stopped:
+	 * later calls to search() return at once.
+	 */
+	public void stop() {
+		stopRequested = true;
+	}
+
+	public int bestMove() { return bestMove; }
+	public int bestScore() { return bestScore; }
+	public int completedDepth() { return completedDepth; }
+	public long nodes() { return nodes; }
+	/**
+	 * Best line found by the last completed iteration (packed moves)
+	 * @return
+	 */
+	public int[] principalVariation() { return bestLine; }
+
+	private int negamax(int depth, int ply, int alpha, int beta) {
+		pvLength[ply] = 0;
+		if (checkAbort()) return 0;
+		++nodes;
+		if (ply > 0 && isRepetition()) return 0;
+		if (ply >= MAX_PLY) return evaluator.evaluate(pos);
+		if (ply > 0) {
+			switch (pos.bitbaseResult()) {
+			case Bitbase.DRAW:
+				return 0;
+			// Static eval is added so that the search makes progress
+			case Bitbase.WIN:
+				return KNOWN_WIN + evaluator.evaluate(pos) - ply;
+			case Bitbase.LOSS:
+				return -KNOWN_WIN + evaluator.evaluate(pos) + ply;
+			default:
+				break;
+			}
+		}
+		boolean inCheck = pos.isInCheck(pos.hasMove());
+		// Don't drop into quiescence search while in check
+		if (inCheck && depth <= 0) depth = 1;
+		if (depth <= 0) return quiesce(ply, alpha, beta);
+
+		long key = pos.hash();
+		long entry = tt.probe(key);
+		int ttMove = Move.NO_MOVE;
+		if (entry != 0) {
+			ttMove = TranspositionTable.move(entry);
+			if (ply > 0 && TranspositionTable.depth(entry) >= depth) {
+				int score = scoreFromTable(TranspositionTable.score(entry), ply);
+				int bound = TranspositionTable.bound(entry);
+				if (bound == TranspositionTable.EXACT
+						|| (bound == TranspositionTable.LOWER_BOUND && score >= beta)
+						|| (bound == TranspositionTable.UPPER_BOUND && score <= alpha)) {
+					return score;
+				}
+			}
+		}
+
+		int[] list = moves[ply];
+		int n = pos.generateMoves(list, 0, false);
+		scoreMoves(list, orderScores[ply], n, ttMove);
+		int origAlpha = alpha;
+		int best = -INFINITY;
+		int bestHere = Move.NO_MOVE;
+		int legal = 0;
+		int m, score;
+		for (int i = 0; i < n; ++i) {
+			m = pickNext(list, orderScores[ply], i, n);
+			if (ply == 0 && isExcluded(m)) continue;
+			pos.move(Move.packedFrom(m), Move.packedTo(m), Move.packedPiece(m));
+			if (pos.leftKingInCheck()) {
+				pos.unmove();
+				continue;
+			}
+			++legal;
+			score = -negamax(depth - 1, ply + 1, -beta, -alpha);
+			pos.unmove();
+			if (aborted) return 0;
+			if (score > best) {
+				best = score;
+				bestHere = m;
+				if (score > alpha) {
+					alpha = score;
+					updatePv(ply, m);
+					if (score >= beta) break;
+				}
+			}
+		}
+		if (legal == 0) {
+			// Nothing left at the root after excluding moves
+			if (ply == 0 && excludedCount > 0) return -INFINITY;
+			return inCheck ? -MATE + ply : 0;
+		}
+		if (ply == 0 && excludedCount > 0) {
+			// Best of the remaining root moves isn't the position's value
+			return best;
+		}
+		int bound = best >= beta ? TranspositionTable.LOWER_BOUND
+			: (best > origAlpha ? TranspositionTable.EXACT : TranspositionTable.UPPER_BOUND);
+		tt.store(key, bestHere, scoreToTable(best, ply), depth, bound);
+		return best;
+	}
+
+	private int quiesce(int ply, int alpha, int beta) {
+		pvLength[ply] = 0;
+		if (checkAbort()) return 0;
+		++nodes;
+		int standPat = evaluator.evaluate(pos);
+		if (standPat >= beta || ply >= MAX_PLY) return standPat;
+		if (standPat > alpha) alpha = standPat;
+
+		int[] list = moves[ply];
+		int n = pos.generateMoves(list, 0, true);
+		scoreMoves(list, orderScores[ply], n, Move.NO_MOVE);
+		int m, score;
+		for (int i = 0; i < n; ++i) {
+			m = pickNext(list, orderScores[ply], i, n);
+			pos.move(Move.packedFrom(m), Move.packedTo(m), Move.packedPiece(m));
+			if (pos.leftKingInCheck()) {
+				pos.unmove();
+				continue;
+			}
+			score = -quiesce(ply + 1, -beta, -alpha);
+			pos.unmove();
+			if (aborted) return 0;
+			if (score > alpha) {
+				alpha = score;
+				updatePv(ply, m);
+				if (score >= beta) break;
+			}
+		}
+		return alpha;
+	}
+
+	private void updatePv(int ply, int m) {
+		pv[ply][0] = m;
+		System.arraycopy(pv[ply + 1], 0, pv[ply], 1, pvLength[ply + 1]);
+		pvLength[ply] = pvLength[ply + 1] + 1;
+	}
+
+	/**
+	 * Orders the table move first, then captures by most valuable victim /
+	 * least valuable attacker, then promotions, then quiet moves
+	 */
+	private void scoreMoves(int[] list, int[] scores, int n, int ttMove) {
+		int m, victim;
+		for (int i = 0; i < n; ++i) {
+			m = list[i];
+			if (m == ttMove) {
+				scores[i] = 1000000;
+				continue;
+			}
+			victim = pos.getPiece(Move.packedTo(m));
+			if (victim != Position.NONE) {
+				scores[i] = 10000 + 10 * Evaluator.pieceValue(victim % Position.PIECES)
+					- Evaluator.pieceValue(pos.getPiece(Move.packedFrom(m)) % Position.PIECES) / 10;
+			}
+			else if (Move.packedPiece(m) != pos.getPiece(Move.packedFrom(m))) {
+				scores[i] = 5000 + Evaluator.pieceValue(Move.packedPiece(m) % Position.PIECES);
+			}
+			else {
+				scores[i] = 0;
+			}
+		}
+	}
+
+	/**
+	 * Selection sort step: swaps the best remaining move into place i
+	 */
+	private static int pickNext(int[] list, int[] scores, int i, int n) {
+		int best = i;
+		for (int j = i + 1; j < n; ++j) {
+			if (scores[j] > scores[best]) best = j;
+		}
+		if (best != i) {
+			int tmp = list[i];
+			list[i] = list[best];
+			list[best] = tmp;
+			tmp = scores[i];
+			scores[i] = scores[best];
+			scores[best] = tmp;
+		}
+		return list[i];
+	}
+
+	/**
+	 * True if the current position already occurred with the same side
+	 * to move, either in the game or earlier in the search line
+	 */
+	private boolean isRepetition() {
+		long key = pos.hash();
+		int last = pos.movesMade();
+		int stop = Math.max(0, last - 100);
+		for (int i = last - 2; i >= stop; i -= 2) {
+			if (pos.hashBefore(i) == key) return true;
+		}
+		return false;
+	}
+
+	private boolean isExcluded(int m) {
+		for (int i = 0; i < excludedCount; ++i) {
+			if (excluded[i] == m) return true;
+		}
+		return false;
+	}
+
+	private boolean checkAbort() {
+		if (aborted) return true;
+		if ((nodes & CHECK_INTERVAL) == 0) {
+			if (stopRequested || nodes >= nodeLimit || System.currentTimeMillis() >= deadline) {
+				aborted = true;
+			}
+		}
+		return aborted;
+	}
+
+	private int firstLegalMove() {
+		int[] list = moves[0];
+		int n = pos.generateMoves(list, 0, false);
+		for (int i = 0; i < n; ++i) {
+			pos.move(Move.packedFrom(list[i]), Move.packedTo(list[i]), Move.packedPiece(list[i]));
+			boolean illegal = pos.leftKingInCheck();
+			pos.unmove();
+			if (!illegal) return list[i];
+		}
+		return Move.NO_MOVE;
+	}
+
+	// Mate scores are stored relative to the node, not the root
+	private static int scoreToTable(int score, int ply) {
+		if (score > MATE_BOUND) return score + ply;
+		if (score < -MATE_BOUND) return score - ply;
+		return score;
+	}
+
+	private static int scoreFromTable(int score, int ply) {
+		if (score > MATE_BOUND) return score - ply;
+		if (score < -MATE_BOUND) return score + ply;
+		return score;
+	}
+}
@@ -0,0 +1,119 @@
+/**
+ * @file
+ * Copyright (c) 2011 Marshall Farrier
+ */
+package com.codemelon.chesswithhumans;
+
+/**
+ * Transposition table for Search, keyed by Position.hash().
+ *
+ * Each entry is a pair of longs: the data word (move, score, depth, bound)
+ * and the key XORed with the data word. A probe only accepts an entry
+ * if both words agree, so several searching threads can share one table
+ * without locking: an entry torn by concurrent writes just looks like
+ * a miss.
+ */
+public class TranspositionTable {
+	public static final int EXACT = 0;
+	public static final int LOWER_BOUND = 1;
+	public static final int UPPER_BOUND = 2;
+	// Must be a power of 2; 2 longs per entry, so 1 MB
+	public static final int DEFAULT_SIZE = 1 << 16;
+
+	private static final int SCORE_SHIFT = 16;
+	private static final int DEPTH_SHIFT = 32;
+	private static final int BOUND_SHIFT = 40;
+	private static final int AGE_SHIFT = 42;
+
+	private final long[] checks;
+	private final long[] data;
+	private final int mask;
+	private volatile int age;
+
+	public TranspositionTable() {
+		this(DEFAULT_SIZE);
+	}
+
+	/**
+	 * @param size Number of entries, must be a power of 2
+	 */
+	public TranspositionTable(int size) {
+		if (size <= 0 || (size & (size - 1)) != 0) {
+			throw new IllegalArgumentException("TranspositionTable: size must be a power of 2");
+		}
+		checks = new long[size];
+		data = new long[size];
+		mask = size - 1;
+	}
+
+	/**
+	 * Returns the data word stored for the given key, 0 if none.
+	 * Use the static accessors to unpack it.
+	 * @param key
+	 * @return
+	 */
+	public long probe(long key) {
+		int i = (int) key & mask;
+		long d = data[i];
+		if (d != 0 && (checks[i] ^ d) == key) return d;
+		return 0;
+	}
+
+	/**
+	 * Stores an entry unless the slot holds a deeper result for another
+	 * position from the current search
+	 * @param key
+	 * @param move Packed move, may be Move.NO_MOVE
+	 * @param score Must fit into 16 bits
+	 * @param depth
+	 * @param bound EXACT, LOWER_BOUND or UPPER_BOUND
+	 */
+	public void store(long key, int move, int score, int depth, int bound) {
+		int i = (int) key & mask;
+		long old = data[i];
+		if (old != 0 && (checks[i] ^ old) != key && depth(old) > depth
+				&& ((old >>> AGE_SHIFT) & 0x3f) == age) {
+			return;
+		}
+		if (move == Move.NO_MOVE && old != 0 && (checks[i] ^ old) == key) {
+			// Keep the best move found by an earlier search of this position
+			move = move(old);
+		}
+		long d = (move & 0xffffL)
+			| ((score & 0xffffL) << SCORE_SHIFT)
+			| ((long) (depth & 0xff) << DEPTH_SHIFT)
+			| ((long) bound << BOUND_SHIFT)
+			| ((long) age << AGE_SHIFT)
+			| (1L << 62);	// Never 0
+		data[i] = d;
+		checks[i] = key ^ d;
+	}
+
+	/**
+	 * Called at the start of each new search so that entries from
+	 * older searches are replaced first
+	 */
+	public void newSearch() {
+		age = (age + 1) & 0x3f;
+	}
+
+	public void clear() {
+		for (int i = 0; i <= mask; ++i) {
+			data[i] = 0;
+			checks[i] = 0;
+		}
+	}
+
+	public static int move(long entry) {
+		return (int) (entry & 0xffff);
+	}
+	public static int score(long entry) {
+		return (short) (entry >>> SCORE_SHIFT);
+	}
+	public static int depth(long entry) {
+		return (int) ((entry >>> DEPTH_SHIFT) & 0xff);
+	}
+	public static int bound(long entry) {
+		return (int) ((entry >>> BOUND_SHIFT) & 3);
+	}
+}
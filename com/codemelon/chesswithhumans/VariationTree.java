@@ -0,0 +1,198 @@
+/**
+ * @file
+ * Copyright (c) 2011 Marshall Farrier
+ */
+package com.codemelon.chesswithhumans;
+
+import java.util.ArrayList;
+
+/**
+ * Move tree for the analysis board (cf. BoardView.ANALYZE_GAME).
+ * Each node is the position after one move; variations share the nodes
+ * of their common prefix. Nodes are indices into parallel int arrays
+ * (packed move, parent, first child, next sibling, depth), so a node
+ * costs a few ints and no objects. Node 0 is the starting position.
+ *
+ * Positions are rebuilt on demand: every node at a depth divisible by
+ * CHECKPOINT_INTERVAL may keep a snapshot in one of MAX_CHECKPOINTS
+ * slots, reused round-robin. Going to a node copies the nearest
+ * ancestor snapshot and replays the moves from there, usually fewer
+ * than CHECKPOINT_INTERVAL. Both the node count and the number of
+ * snapshots are fixed, so memory stays bounded however many lines
+ * are explored.
+ */
+public class VariationTree {
+	public static final int MAX_NODES = 2048;
+	public static final int ROOT = 0;
+	public static final int NONE = -1;
+	private static final int CHECKPOINT_INTERVAL = 8;
+	private static final int MAX_CHECKPOINTS = 16;
+
+	private final int[] moves = new int[MAX_NODES];
+	private final int[] parent = new int[MAX_NODES];
+	private final int[] firstChild = new int[MAX_NODES];
+	private final int[] nextSibling = new int[MAX_NODES];
+	private final int[] depth = new int[MAX_NODES];
+	// Checkpoint slot of each node, NONE if none
+	private final int[] checkpoint = new int[MAX_NODES];
+	private int size;
+
+	private final Position[] snapshots = new Position[MAX_CHECKPOINTS];
+	// Node whose snapshot is in each slot, NONE if unused
+	private final int[] snapshotNode = new int[MAX_CHECKPOINTS];
+	private int nextSlot;
+	private final Position start = new Position();
+	// Nodes to replay, deepest first
+	private int[] path = new int[CHECKPOINT_INTERVAL * 4];
+
+	/**
+	 * @param mainLine Moves of the game, entered as the main line
+	 */
+	public VariationTree(ArrayList<Move> mainLine) {
+		moves[ROOT] = Move.NO_MOVE;
+		parent[ROOT] = NONE;
+		firstChild[ROOT] = NONE;
+		nextSibling[ROOT] = NONE;
+		depth[ROOT] = 0;
+		checkpoint[ROOT] = NONE;
+		size = 1;
+		for (int i = 0; i < MAX_CHECKPOINTS; ++i) {
+			snapshotNode[i] = NONE;
+		}
+		int node = ROOT;
+		int len = mainLine.size();
+		for (int i = 0; i < len && node != NONE; ++i) {
+			node = add(node, mainLine.get(i).pack());
+		}
+	}
+
+	/**
+	 * Child of node for the given move, which is added as the last
+	 * variation if it isn't there yet. The move must be legal.
+	 * @param node
+	 * @param packedMove
+	 * @return The child, NONE if the tree is full
+	 */
+	public int add(int node, int packedMove) {
+		int child = firstChild[node];
+		int last = NONE;
+		while (child != NONE) {
+			if (moves[child] == packedMove) return child;
+			last = child;
+			child = nextSibling[child];
+		}
+		if (size == MAX_NODES) return NONE;
+		child = size++;
+		moves[child] = packedMove;
+		parent[child] = node;
+		firstChild[child] = NONE;
+		nextSibling[child] = NONE;
+		depth[child] = depth[node] + 1;
+		checkpoint[child] = NONE;
+		if (last == NONE) firstChild[node] = child;
+		else nextSibling[last] = child;
+		return child;
+	}
+
+	public int size() {
+		return size;
+	}
+	public boolean isFull() {
+		return size == MAX_NODES;
+	}
+	/**
+	 * @param node
+	 * @return Packed move leading to the node, Move.NO_MOVE for the root
+	 */
+	public int move(int node) {
+		return moves[node];
+	}
+	public int parent(int node) {
+		return parent[node];
+	}
+	public int firstChild(int node) {
+		return firstChild[node];
+	}
+	public int nextSibling(int node) {
+		return nextSibling[node];
+	}
+	/**
+	 * @param node
+	 * @return Number of moves from the starting position
+	 */
+	public int depth(int node) {
+		return depth[node];
+	}
+
+	/**
+	 * Sibling after the given node, wrapping around to the first one
+	 * @param node
+	 * @return node itself if it has no sibling
+	 */
+	public int nextVariation(int node) {
+		if (node == ROOT) return ROOT;
+		int next = nextSibling[node];
+		return next == NONE ? firstChild[parent[node]] : next;
+	}
+
+	/**
+	 * @param node
+	 * @return 1-based index of the node among its siblings
+	 */
+	public int variationIndex(int node) {
+		if (node == ROOT) return 1;
+		int result = 1;
+		for (int child = firstChild[parent[node]]; child != node; child = nextSibling[child]) {
+			++result;
+		}
+		return result;
+	}
+
+	/**
+	 * @param node
+	 * @return Number of moves played from the node's position
+	 */
+	public int variations(int node) {
+		int result = 0;
+		for (int child = firstChild[node]; child != NONE; child = nextSibling[child]) {
+			++result;
+		}
+		return result;
+	}
+
+	/**
+	 * Sets p to the position at the given node
+	 * @param node
+	 * @param p
+	 */
+	public void position(int node, Position p) {
+		int n = 0;
+		while (node != ROOT && checkpoint[node] == NONE) {
+			if (n == path.length) {
+				int[] tmp = new int[2 * n];
+				System.arraycopy(path, 0, tmp, 0, n);
+				path = tmp;
+			}
+			path[n++] = node;
+			node = parent[node];
+		}
+		p.copyFrom(node == ROOT ? start : snapshots[checkpoint[node]]);
+		int m;
+		while (n > 0) {
+			node = path[--n];
+			m = moves[node];
+			p.move(Move.packedFrom(m), Move.packedTo(m), Move.packedPiece(m));
+			if (depth[node] % CHECKPOINT_INTERVAL == 0) saveCheckpoint(node, p);
+		}
+	}
+
+	private void saveCheckpoint(int node, Position p) {
+		int slot = nextSlot;
+		nextSlot = (nextSlot + 1) % MAX_CHECKPOINTS;
+		if (snapshotNode[slot] != NONE) checkpoint[snapshotNode[slot]] = NONE;
+		if (snapshots[slot] == null) snapshots[slot] = new Position();
+		snapshots[slot].copyFrom(p);
+		snapshotNode[slot] = node;
+		checkpoint[node] = slot;
+	}
+}
@@ -0,0 +1,47 @@
+/**
+ * @file
+ * Copyright (c) 2011 Marshall Farrier
+ */
+package com.codemelon.chesswithhumans;
+
+import java.util.Random;
+
+/**
+ * Random keys for Zobrist hashing of positions.
+ * The keys come from a fixed seed, so a hash is the same
+ * on every device and from one run to the next. Hashes may therefore
+ * be stored (e.g. in the database or in an opening book file).
+ * Changing the seed or the order in which keys are drawn invalidates
+ * all stored hashes!
+ */
+public class Zobrist {
+	private static final long SEED = 0x636865737357L;
+	// Indexed by piece (0 to 11) and square
+	static final long[][] PIECE_SQUARE = new long[2 * Position.PIECES][Position.SQUARES];
+	// Indexed by packed castling flags (cf. Position.castlingFlags())
+	static final long[] CASTLING = new long[64];
+	// Indexed by file of a pawn that can be taken e.p.
+	static final long[] EN_PASSANT = new long[Position.BOARD_SIZE];
+	// XORed in iff black is to move
+	static final long BLACK_TO_MOVE;
+	
+	static {
+		Random rand = new Random(SEED);
+		int i, j;
+		for (i = 0; i < 2 * Position.PIECES; ++i) {
+			for (j = 0; j < Position.SQUARES; ++j) {
+				PIECE_SQUARE[i][j] = rand.nextLong();
+			}
+		}
+		// No castling flag set must not change the hash
+		for (i = 1; i < CASTLING.length; ++i) {
+			CASTLING[i] = rand.nextLong();
+		}
+		for (i = 0; i < Position.BOARD_SIZE; ++i) {
+			EN_PASSANT[i] = rand.nextLong();
+		}
+		BLACK_TO_MOVE = rand.nextLong();
+	}
+	
+	private Zobrist() {}
+}